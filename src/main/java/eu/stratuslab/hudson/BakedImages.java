@@ -0,0 +1,132 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.utils.ProcessUtils;
+
+/*
+ * Images baked from slave templates, kept in the Hudson root directory.
+ * An image is only used while the hash of the template's base image and
+ * init script matches the one it was baked with.
+ */
+public final class BakedImages {
+
+    public static final String FILENAME = "stratuslab-images.properties";
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    private static Properties images;
+
+    private BakedImages() {
+
+    }
+
+    // The image new instances of the template should be started from.
+    public static String getLaunchImage(SlaveTemplate template) {
+        String baked = getBakedImage(template);
+        return (baked != null) ? baked : template.marketplaceId;
+    }
+
+    public static synchronized String getBakedImage(SlaveTemplate template) {
+        String value = load().getProperty(template.getId());
+        if (value != null) {
+            String[] fields = value.split(" ");
+            if (fields.length == 2 && fields[1].equals(template.getBakeHash())) {
+                return fields[0];
+            }
+        }
+        return null;
+    }
+
+    public static boolean isBakedImage(SlaveTemplate template, String imageId) {
+        return imageId != null && imageId.equals(getBakedImage(template));
+    }
+
+    public static synchronized void record(SlaveTemplate template,
+            String imageId, String hash) {
+
+        Properties properties = load();
+        properties.setProperty(template.getId(), imageId + " " + hash);
+
+        try {
+            save(properties);
+        } catch (IOException e) {
+            LOGGER.severe("cannot save baked images: " + e.getMessage());
+        }
+    }
+
+    private static Properties load() {
+
+        if (images == null) {
+            images = new Properties();
+
+            File file = getFile();
+            if (file.exists()) {
+                InputStream is = null;
+                try {
+                    is = new FileInputStream(file);
+                    images.load(is);
+                } catch (IOException e) {
+                    LOGGER.severe("cannot read baked images: "
+                            + e.getMessage());
+                } finally {
+                    ProcessUtils.closeReliably(is);
+                }
+            }
+        }
+
+        return images;
+    }
+
+    private static void save(Properties properties) throws IOException {
+
+        File file = getFile();
+        File tmp = new File(file.getPath() + ".tmp");
+
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            properties.store(os, "StratusLab baked images");
+        } finally {
+            ProcessUtils.closeReliably(os);
+        }
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException("cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    private static File getFile() {
+        return new File(Hudson.getInstance().getRootDir(), FILENAME);
+    }
+
+}
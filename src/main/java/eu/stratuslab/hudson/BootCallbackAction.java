@@ -0,0 +1,63 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/*
+ * Endpoint called by booting instances with their one-time token (see
+ * BootCallbacks). The token is the only credential; when security is
+ * enabled, anonymous users need read access to reach it. It is not shown
+ * in the side panel.
+ */
+@Extension
+public class BootCallbackAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "StratusLab Boot Callback";
+    }
+
+    public String getUrlName() {
+        return BootCallbacks.URL_NAME;
+    }
+
+    public void doReady(StaplerRequest req, StaplerResponse rsp)
+            throws IOException {
+        String token = req.getParameter("token");
+        if (token != null && BootCallbacks.notifyReady(token)) {
+            rsp.setStatus(HttpServletResponse.SC_OK);
+        } else {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.model.Hudson;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import eu.stratuslab.hudson.StratusLabProxy.InstanceInfo;
+import eu.stratuslab.hudson.utils.Metrics;
+
+/*
+ * One-time tokens with which booting instances tell the master that they
+ * are up, so that launches continue right away instead of at the next
+ * poll. A token is created before the instance is started and its URL is
+ * passed to the instance in its context; once the instance is known, the
+ * token is bound to it so that the launcher can wait on it. Polling still
+ * happens between waits, so instances that never call back are launched
+ * as before.
+ */
+public final class BootCallbacks {
+
+    public static final String URL_NAME = "stratuslab-boot";
+
+    public static final String CONTEXT_VARIABLE = "STRATUSLAB_BOOT_URL";
+
+    public static final String RECEIVED_COUNTER = "callbacks.received";
+
+    public static final String REJECTED_COUNTER = "callbacks.rejected";
+
+    // Tokens of instances that never launched are dropped after this.
+    public static final long MAX_AGE_MILLIS = 2L * 60L * 60L * 1000L;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Object LOCK = new Object();
+
+    private static final Map<String, Callback> BY_TOKEN = new HashMap<String, Callback>();
+
+    private static final Map<String, Callback> BY_INSTANCE = new HashMap<String, Callback>();
+
+    private BootCallbacks() {
+    }
+
+    public static String getKey(CloudParameters params, InstanceInfo info) {
+        return params.getAccountKey() + "#" + info.vmid;
+    }
+
+    public static String register() {
+        String token = new BigInteger(128, RANDOM).toString(16);
+        synchronized (LOCK) {
+            purge(System.currentTimeMillis());
+            BY_TOKEN.put(token, new Callback(token));
+        }
+        return token;
+    }
+
+    // Null if the URL of the master is not configured.
+    public static String getUrl(String token) {
+        String root = Hudson.getInstance().getRootUrl();
+        if (root == null) {
+            return null;
+        }
+        return root + URL_NAME + "/ready?token=" + token;
+    }
+
+    public static void bind(String token, String key) {
+        synchronized (LOCK) {
+            Callback callback = BY_TOKEN.get(token);
+            if (callback != null) {
+                callback.key = key;
+                BY_INSTANCE.put(key, callback);
+            }
+        }
+    }
+
+    // Returns false for unknown tokens; each token works only once. The
+    // instance may call back before its token is bound.
+    public static boolean notifyReady(String token) {
+        synchronized (LOCK) {
+            Callback callback = BY_TOKEN.get(token);
+            if (callback == null || callback.used) {
+                Metrics.increment(REJECTED_COUNTER);
+                return false;
+            }
+            callback.used = true;
+            callback.ready = true;
+            LOCK.notifyAll();
+        }
+        Metrics.increment(RECEIVED_COUNTER);
+        return true;
+    }
+
+    // Waits for the callback of the instance for at most the given time.
+    // Returns true (only once) if the instance has called back; without a
+    // callback for the instance, this is just a sleep.
+    public static boolean await(String key, long millis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (LOCK) {
+            while (true) {
+                Callback callback = BY_INSTANCE.get(key);
+                if (callback != null && callback.ready) {
+                    callback.ready = false;
+                    return true;
+                }
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0L) {
+                    return false;
+                }
+                LOCK.wait(remaining);
+            }
+        }
+    }
+
+    public static void cancel(String token) {
+        synchronized (LOCK) {
+            Callback callback = BY_TOKEN.remove(token);
+            if (callback != null && callback.key != null) {
+                BY_INSTANCE.remove(callback.key);
+            }
+        }
+    }
+
+    public static void release(String key) {
+        synchronized (LOCK) {
+            Callback callback = BY_INSTANCE.remove(key);
+            if (callback != null) {
+                BY_TOKEN.remove(callback.token);
+            }
+        }
+    }
+
+    private static void purge(long now) {
+        Iterator<Callback> it = BY_TOKEN.values().iterator();
+        while (it.hasNext()) {
+            Callback callback = it.next();
+            if (now - callback.created > MAX_AGE_MILLIS) {
+                it.remove();
+                if (callback.key != null) {
+                    BY_INSTANCE.remove(callback.key);
+                }
+            }
+        }
+    }
+
+    private static class Callback {
+
+        public final String token;
+
+        public final long created = System.currentTimeMillis();
+
+        public String key;
+
+        public boolean used;
+
+        public boolean ready;
+
+        public Callback(String token) {
+            this.token = token;
+        }
+    }
+
+}
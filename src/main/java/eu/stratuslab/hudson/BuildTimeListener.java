@@ -0,0 +1,138 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.utils.Metrics;
+
+/*
+ * Times the builds run on cloud nodes, separating the first build on a
+ * fresh node (with or without a seed archive) from builds on warm nodes.
+ * Nodes of templates with seeding enabled are marked as sources for the
+ * next seed archive. The gaps between builds feed the retention models
+ * and the peak usage of each build is added to the usage store of its
+ * template.
+ */
+@Extension
+@SuppressWarnings("rawtypes")
+public class BuildTimeListener extends RunListener<AbstractBuild> {
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    public static final String FRESH_BUILD_TIMER = "build.fresh";
+
+    public static final String SEEDED_BUILD_TIMER = "build.fresh.seeded";
+
+    public static final String WARM_BUILD_TIMER = "build.warm";
+
+    public BuildTimeListener() {
+        super(AbstractBuild.class);
+    }
+
+    @Override
+    public void onStarted(AbstractBuild build, TaskListener listener) {
+        SlaveTemplate template = getTemplate(build);
+        if (template != null) {
+            RetentionModel.get(template).recordStart(
+                    build.getBuiltOn().getNodeName(),
+                    System.currentTimeMillis());
+            call(build, new UsageSampler.Start(getKey(build)));
+        }
+    }
+
+    private static SlaveTemplate getTemplate(AbstractBuild build) {
+        Node node = build.getBuiltOn();
+        return (node instanceof CloudSlave) ? ((CloudSlave) node)
+                .getTemplate() : null;
+    }
+
+    private static String getKey(AbstractBuild build) {
+        return build.getParent().getFullName() + "#" + build.getNumber();
+    }
+
+    // Usage is only measured on a best effort basis.
+    private static <V> V call(AbstractBuild build,
+            Callable<V, IOException> callable) {
+        Computer computer = build.getBuiltOn().toComputer();
+        VirtualChannel channel = (computer != null) ? computer.getChannel()
+                : null;
+        if (channel == null) {
+            return null;
+        }
+        try {
+            return channel.call(callable);
+        } catch (IOException e) {
+            LOGGER.fine("cannot measure usage of " + getKey(build) + ": "
+                    + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    @Override
+    public void onCompleted(AbstractBuild build, TaskListener listener) {
+
+        Node node = build.getBuiltOn();
+        if (!(node instanceof CloudSlave)) {
+            return;
+        }
+
+        CloudSlave slave = (CloudSlave) node;
+
+        String timer = WARM_BUILD_TIMER;
+        if (slave.markWarm()) {
+            timer = slave.isSeeded() ? SEEDED_BUILD_TIMER : FRESH_BUILD_TIMER;
+        }
+        Metrics.recordTime(timer, build.getDuration());
+
+        SlaveTemplate template = slave.getTemplate();
+        if (template != null) {
+            RetentionModel.get(template).recordCompletion(
+                    slave.getNodeName(), System.currentTimeMillis());
+            recordUsage(build, template);
+            if (template.isSeedingEnabled()) {
+                SeedArchives.markStale(template, slave.getNodeName());
+            }
+        }
+    }
+
+    private static void recordUsage(AbstractBuild build, SlaveTemplate template) {
+        UsageSample sample = call(build, new UsageSampler.Stop(getKey(build)));
+        // Builds shorter than a sampling interval have no peaks.
+        if (sample != null && sample.memoryMB > 0L) {
+            UsageStore.get(template).record(build.getParent().getFullName(),
+                    sample);
+        }
+    }
+
+}
@@ -0,0 +1,185 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.utils.Metrics;
+
+/*
+ * Stops the plugin from forking client processes against an endpoint that
+ * keeps failing. After a number of consecutive failures the circuit opens
+ * and all calls fail immediately. Once the cool-down has expired, a single
+ * call is let through (half-open): the circuit closes again if it succeeds
+ * and reopens if it fails.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    public static final int DEFAULT_COOL_DOWN_SECONDS = 60;
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<String, CircuitBreaker>();
+
+    private final String endpoint;
+
+    private int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+    private long coolDownMillis = DEFAULT_COOL_DOWN_SECONDS * 1000L;
+
+    private State state = State.CLOSED;
+
+    private int failures;
+
+    private long openedAt;
+
+    private boolean trialInProgress;
+
+    CircuitBreaker(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    public static CircuitBreaker get(CloudParameters params) {
+        return get(params.endpoint);
+    }
+
+    public static CircuitBreaker get(String endpoint) {
+        CircuitBreaker breaker = BREAKERS.get(endpoint);
+        if (breaker == null) {
+            CircuitBreaker newBreaker = new CircuitBreaker(endpoint);
+            breaker = BREAKERS.putIfAbsent(endpoint, newBreaker);
+            if (breaker == null) {
+                breaker = newBreaker;
+            }
+        }
+        return breaker;
+    }
+
+    public static Map<String, State> getStates() {
+        Map<String, State> states = new TreeMap<String, State>();
+        for (Map.Entry<String, CircuitBreaker> entry : BREAKERS.entrySet()) {
+            states.put(entry.getKey(), entry.getValue().getState());
+        }
+        return states;
+    }
+
+    // Non-positive values select the defaults.
+    public synchronized void configure(int failureThreshold,
+            int coolDownSeconds) {
+
+        this.failureThreshold = (failureThreshold > 0) ? failureThreshold
+                : DEFAULT_FAILURE_THRESHOLD;
+        this.coolDownMillis = 1000L * ((coolDownSeconds > 0) ? coolDownSeconds
+                : DEFAULT_COOL_DOWN_SECONDS);
+    }
+
+    public boolean isCallPermitted() {
+        return isCallPermitted(System.currentTimeMillis());
+    }
+
+    synchronized boolean isCallPermitted(long now) {
+        switch (state) {
+        case CLOSED:
+            return true;
+        case OPEN:
+            return now - openedAt >= coolDownMillis;
+        default:
+            return !trialInProgress;
+        }
+    }
+
+    // Must be followed by a call to recordSuccess(), recordFailure() or
+    // release().
+    public void acquire() throws StratusLabException {
+        acquire(System.currentTimeMillis());
+    }
+
+    synchronized void acquire(long now) throws StratusLabException {
+
+        if (state == State.OPEN && now - openedAt >= coolDownMillis) {
+            transition(State.HALF_OPEN);
+        }
+
+        if (state == State.OPEN || (state == State.HALF_OPEN && trialInProgress)) {
+            Metrics.increment("circuit.rejected");
+            String fmt = "endpoint %s is unavailable (circuit open after %d failures)";
+            throw new StratusLabException(String.format(fmt, endpoint,
+                    failures));
+        }
+
+        if (state == State.HALF_OPEN) {
+            trialInProgress = true;
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        trialInProgress = false;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    // Ends a call that says nothing about the health of the endpoint.
+    public synchronized void release() {
+        trialInProgress = false;
+    }
+
+    public void recordFailure() {
+        recordFailure(System.currentTimeMillis());
+    }
+
+    synchronized void recordFailure(long now) {
+        failures++;
+        trialInProgress = false;
+        if (state == State.HALF_OPEN
+                || (state == State.CLOSED && failures >= failureThreshold)) {
+            openedAt = now;
+            transition(State.OPEN);
+        }
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void transition(State newState) {
+
+        String fmt = "circuit for endpoint %s changed from %s to %s";
+        LOGGER.warning(String.format(fmt, endpoint, state, newState));
+
+        Metrics.increment("circuit." + newState.name().toLowerCase(Locale.ENGLISH)
+                + ".transitions");
+        state = newState;
+    }
+
+}
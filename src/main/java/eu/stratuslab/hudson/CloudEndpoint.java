@@ -0,0 +1,106 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static eu.stratuslab.hudson.utils.CloudParameterUtils.isEmptyStringOrNull;
+import static eu.stratuslab.hudson.utils.CloudParameterUtils.isPositiveInteger;
+import static eu.stratuslab.hudson.utils.CloudParameterUtils.validateEndpoint;
+import hudson.Extension;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.util.FormValidation;
+
+import java.io.Serializable;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/*
+ * An additional StratusLab endpoint (and account) that a cloud can start
+ * instances on. The client and ssh keys are shared with the cloud.
+ */
+@SuppressWarnings("serial")
+public class CloudEndpoint implements Describable<CloudEndpoint>, Serializable {
+
+    public final String endpoint;
+
+    public final String username;
+
+    public final String password;
+
+    public final int instanceLimit;
+
+    @DataBoundConstructor
+    public CloudEndpoint(String endpoint, String username, String password,
+            int instanceLimit) {
+
+        this.endpoint = endpoint;
+        this.username = username;
+        this.password = password;
+        this.instanceLimit = instanceLimit;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Descriptor<CloudEndpoint> getDescriptor() {
+        return Hudson.getInstance().getDescriptor(getClass());
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<CloudEndpoint> {
+
+        public String getDisplayName() {
+            return "Cloud Endpoint";
+        }
+
+        public FormValidation doCheckEndpoint(@QueryParameter String endpoint) {
+            return validateEndpoint(endpoint);
+        }
+
+        public FormValidation doCheckUsername(@QueryParameter String username) {
+            if (isEmptyStringOrNull(username)) {
+                return FormValidation.error("username must be defined");
+            } else {
+                return FormValidation.ok();
+            }
+        }
+
+        public FormValidation doCheckPassword(@QueryParameter String password) {
+            if (isEmptyStringOrNull(password)) {
+                return FormValidation.error("password must be defined");
+            } else {
+                return FormValidation.ok();
+            }
+        }
+
+        public FormValidation doCheckInstanceLimit(
+                @QueryParameter int instanceLimit) {
+
+            if (!isPositiveInteger(instanceLimit)) {
+                return FormValidation
+                        .error("instance limit must be a positive integer");
+            } else {
+                return FormValidation.ok();
+            }
+        }
+
+    }
+
+}
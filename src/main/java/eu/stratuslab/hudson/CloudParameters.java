@@ -34,9 +34,15 @@ import java.util.Arrays;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import eu.stratuslab.hudson.utils.Interner;
+import eu.stratuslab.hudson.utils.SshKeyCache;
+import eu.stratuslab.hudson.utils.SshKeyCache.SshKey;
+
 @SuppressWarnings("serial")
 public class CloudParameters implements Serializable {
 
+    private static final Interner<CloudParameters> INTERNER = new Interner<CloudParameters>();
+
     public final String clientLocation;
     public final String endpoint;
     public final String username;
@@ -46,8 +52,6 @@ public class CloudParameters implements Serializable {
     public final String sshPrivateKeyPassword;
     public final int instanceLimit;
 
-    private final char[] sshPrivateKeyData;
-
     @DataBoundConstructor
     public CloudParameters(String clientLocation, String endpoint,
             String username, String password, String sshPublicKey,
@@ -62,12 +66,49 @@ public class CloudParameters implements Serializable {
         this.sshPrivateKey = getKeyFile(sshPrivateKey, "").getAbsolutePath();
         this.sshPrivateKeyPassword = sshPrivateKeyPassword;
         this.instanceLimit = instanceLimit;
+    }
+
+    // Equal parameters read from the configuration or created when it is
+    // reloaded share a single instance.
+    public static CloudParameters intern(CloudParameters params) {
+        return INTERNER.intern(params);
+    }
+
+    protected Object readResolve() {
+        return intern(this);
+    }
+
+    private Object[] content() {
+        return new Object[] { clientLocation, endpoint, username, password,
+                sshPublicKey, sshPrivateKey, sshPrivateKeyPassword,
+                instanceLimit };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CloudParameters)) {
+            return false;
+        }
+        return Arrays.equals(content(), ((CloudParameters) o).content());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(content());
+    }
 
-        sshPrivateKeyData = getSshPrivateKeyData(sshPrivateKey);
+    // Clouds that share the same account see the same list of instances.
+    public String getAccountKey() {
+        return endpoint + "#" + username;
     }
 
-    public char[] getSshPrivateKeyData() {
-        return Arrays.copyOf(sshPrivateKeyData, sshPrivateKeyData.length);
+    // The key data is shared by all connections and must not be modified.
+    public SshKey getSshKey() {
+        return SshKeyCache.getKey(new File(sshPrivateKey),
+                sshPrivateKeyPassword);
     }
 
     public static File getKeyFile(String keyFilename, String suffix) {
@@ -20,12 +20,10 @@
 package eu.stratuslab.hudson;
 
 import static eu.stratuslab.hudson.StratusLabProxy.killInstance;
-import static eu.stratuslab.hudson.StratusLabProxy.startInstance;
 import hudson.model.TaskListener;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Node;
 import hudson.slaves.AbstractCloudSlave;
-import hudson.slaves.CloudRetentionStrategy;
 import hudson.slaves.NodeProperty;
 
 import java.io.IOException;
@@ -41,33 +39,100 @@ public class CloudSlave extends AbstractCloudSlave {
     private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
             .getName());
 
-    private final CloudParameters cloudParams;
+    private SlaveReference reference;
 
-    private InstanceInfo info;
+    private final InstanceInfo info;
 
-    private final SlaveTemplate template;
+    // Only read from configurations saved by older versions.
+    @Deprecated
+    private CloudParameters cloudParams;
+
+    @Deprecated
+    private SlaveTemplate template;
+
+    private transient volatile boolean parking;
+
+    // Whether the seed archive was unpacked on the instance and whether a
+    // build has already run on it since the master started.
+    private transient volatile boolean seeded;
+
+    private transient boolean warm;
 
     public CloudSlave(CloudParameters cloudParams, SlaveTemplate template,
+            InstanceInfo info, boolean revived, long requestedMillis,
             String name, String nodeDescription, String remoteFS,
             int numExecutors, Node.Mode mode, String labelString,
             List<? extends NodeProperty<?>> nodeProperties)
-            throws FormException, IOException, StratusLabException {
+            throws FormException, IOException {
 
         super(name, nodeDescription, remoteFS, numExecutors, mode, labelString,
                 null, null, nodeProperties);
 
-        this.cloudParams = cloudParams;
-        this.template = template;
-
-        createInstance();
+        this.reference = SlaveReference.intern(new SlaveReference(
+                cloudParams, template));
+        this.info = info;
 
-        setLauncher(new StratusLabLauncher(cloudParams, template, info));
+        setLauncher(new StratusLabLauncher(reference, info, revived,
+                requestedMillis));
 
-        this.setRetentionStrategy(new CloudRetentionStrategy(
+        this.setRetentionStrategy(new ParkingRetentionStrategy(
                 template.idleMinutes));
 
     }
 
+    @Override
+    @SuppressWarnings("deprecation")
+    protected Object readResolve() {
+        if (reference == null && cloudParams != null && template != null) {
+            reference = SlaveReference.intern(new SlaveReference(
+                    cloudParams, template));
+            setLauncher(new StratusLabLauncher(reference, info, false,
+                    System.currentTimeMillis()));
+            cloudParams = null;
+            template = null;
+        }
+        return super.readResolve();
+    }
+
+    public SlaveReference getReference() {
+        return reference;
+    }
+
+    public CloudParameters getCloudParameters() {
+        return reference.getCloudParameters();
+    }
+
+    public InstanceInfo getInstanceInfo() {
+        return info;
+    }
+
+    public SlaveTemplate getTemplate() {
+        return reference.getTemplate();
+    }
+
+    public boolean isSeeded() {
+        return seeded;
+    }
+
+    public void setSeeded(boolean seeded) {
+        this.seeded = seeded;
+    }
+
+    // Returns true for the first build on the node.
+    public synchronized boolean markWarm() {
+        boolean fresh = !warm;
+        warm = true;
+        return fresh;
+    }
+
+    // Removes the slave from Hudson; the instance is kept running for
+    // reuse if the template allows it.
+    public void parkOrTerminate() throws InterruptedException, IOException {
+        SlaveTemplate t = getTemplate();
+        parking = (t != null && t.isParkingEnabled());
+        terminate();
+    }
+
     @Override
     public StratusLabComputer createComputer() {
 
@@ -81,13 +146,35 @@ public class CloudSlave extends AbstractCloudSlave {
 
         LOGGER.log(Level.INFO, "_terminate called");
 
+        ProvisioningJournal.getInstance().transition(getNodeName(),
+                ProvisioningJournal.State.TERMINATED);
+
+        SlaveTemplate template = getTemplate();
+        if (template != null) {
+            RetentionModel.get(template).forget(getNodeName());
+        }
+
+        CloudParameters params = getCloudParameters();
+        if (params == null) {
+            String msg = "cloud of " + reference + " no longer exists; "
+                    + "not killing instance " + info;
+            LOGGER.warning(msg);
+            listener.error(msg);
+            return;
+        }
+
+        if (parking && ParkedInstancePool.park(params, getTemplate(), info)) {
+            listener.getLogger().println("parked instance " + info);
+            return;
+        }
+
         String msg = "killing instance " + info;
         LOGGER.info(msg);
         listener.getLogger().println(msg);
 
         try {
 
-            killInstance(cloudParams, String.valueOf(info.vmid));
+            killInstance(params, String.valueOf(info.vmid));
 
         } catch (StratusLabException e) {
             LOGGER.severe(e.getMessage());
@@ -96,16 +183,4 @@ public class CloudSlave extends AbstractCloudSlave {
 
     }
 
-    private void createInstance() throws StratusLabException {
-
-        String msg = "creating instance ";
-        LOGGER.info(msg);
-
-        info = startInstance(cloudParams, template.marketplaceId,
-                template.instanceType);
-
-        msg = "created instance with " + info;
-        LOGGER.info(msg);
-    }
-
 }
@@ -0,0 +1,107 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/*
+ * Chooses the endpoints on which new instances are started during one round
+ * of provisioning. Endpoints are ranked by their free capacity weighted by
+ * their health and by how quickly they start instances. The remaining
+ * endpoints are returned as well, in order, so that they can be used if the
+ * first one fails.
+ */
+public class EndpointSelector {
+
+    private final List<Candidate> candidates = new LinkedList<Candidate>();
+
+    public void addEndpoint(CloudParameters params, int capacity) {
+        candidates.add(new Candidate(params, capacity,
+                EndpointStatistics.get(params)));
+    }
+
+    public List<CloudParameters> rank() {
+
+        // Scores depend on the time, so they are fixed before sorting.
+        List<Candidate> available = new ArrayList<Candidate>();
+        for (Candidate candidate : candidates) {
+            if (candidate.capacity > 0) {
+                candidate.score = candidate.computeScore();
+                available.add(candidate);
+            }
+        }
+
+        // The sort is stable, so the primary endpoint wins ties.
+        Collections.sort(available, new ScoreComparator());
+
+        List<CloudParameters> ranked = new ArrayList<CloudParameters>();
+        for (Candidate candidate : available) {
+            ranked.add(candidate.params);
+        }
+        return ranked;
+    }
+
+    public void reserve(CloudParameters params) {
+        for (Candidate candidate : candidates) {
+            if (candidate.params == params) {
+                candidate.capacity--;
+            }
+        }
+    }
+
+    private static class Candidate {
+
+        public final CloudParameters params;
+
+        public final EndpointStatistics statistics;
+
+        public int capacity;
+
+        public double score;
+
+        public Candidate(CloudParameters params, int capacity,
+                EndpointStatistics statistics) {
+            this.params = params;
+            this.capacity = capacity;
+            this.statistics = statistics;
+        }
+
+        public double computeScore() {
+            double latency = statistics.getLatencyMillis()
+                    / (double) EndpointStatistics.DEFAULT_LATENCY_MILLIS;
+            return capacity * statistics.getHealth() / Math.max(latency, 0.01);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ScoreComparator implements Comparator<Candidate>,
+            Serializable {
+
+        public int compare(Candidate c1, Candidate c2) {
+            return Double.compare(c2.score, c1.score);
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Recent behaviour of an endpoint when starting instances: a health score
+ * between 0 and 1 (the moving average of successes) and the moving average
+ * of the time taken by stratus-run-instance. The health of a failing
+ * endpoint recovers over time so that it is eventually tried again.
+ */
+public class EndpointStatistics {
+
+    public static final long DEFAULT_LATENCY_MILLIS = 60L * 1000L;
+
+    public static final long RECOVERY_MILLIS = 10L * 60L * 1000L;
+
+    private static final double WEIGHT = 0.3;
+
+    private static final ConcurrentMap<String, EndpointStatistics> STATISTICS = new ConcurrentHashMap<String, EndpointStatistics>();
+
+    private double health = 1.0;
+
+    private double latencyMillis;
+
+    private long lastFailure;
+
+    public static EndpointStatistics get(CloudParameters params) {
+        return get(params.getAccountKey());
+    }
+
+    public static EndpointStatistics get(String key) {
+        EndpointStatistics statistics = STATISTICS.get(key);
+        if (statistics == null) {
+            EndpointStatistics newStatistics = new EndpointStatistics();
+            statistics = STATISTICS.putIfAbsent(key, newStatistics);
+            if (statistics == null) {
+                statistics = newStatistics;
+            }
+        }
+        return statistics;
+    }
+
+    public synchronized void recordSuccess(long elapsedMillis) {
+        health = getHealth(System.currentTimeMillis()) * (1.0 - WEIGHT)
+                + WEIGHT;
+        lastFailure = 0L;
+        if (latencyMillis <= 0.0) {
+            latencyMillis = elapsedMillis;
+        } else {
+            latencyMillis = latencyMillis * (1.0 - WEIGHT) + elapsedMillis
+                    * WEIGHT;
+        }
+    }
+
+    public synchronized void recordFailure() {
+        long now = System.currentTimeMillis();
+        health = getHealth(now) * (1.0 - WEIGHT);
+        lastFailure = now;
+    }
+
+    public synchronized double getHealth() {
+        return getHealth(System.currentTimeMillis());
+    }
+
+    synchronized double getHealth(long now) {
+        if (lastFailure == 0L) {
+            return health;
+        }
+        double recovered = Math.min(1.0, (now - lastFailure)
+                / (double) RECOVERY_MILLIS);
+        return health + (1.0 - health) * recovered;
+    }
+
+    public synchronized long getLatencyMillis() {
+        return (latencyMillis > 0.0) ? (long) latencyMillis
+                : DEFAULT_LATENCY_MILLIS;
+    }
+
+    public synchronized String toString() {
+        return String.format("health=%.2f, latency=%dms", getHealth(),
+                getLatencyMillis());
+    }
+
+}
@@ -0,0 +1,308 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.model.TaskListener;
+import hudson.org.apache.tools.tar.TarOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.tools.tar.TarEntry;
+
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.SCPClient;
+import com.trilead.ssh2.Session;
+
+import eu.stratuslab.hudson.utils.Metrics;
+import eu.stratuslab.hudson.utils.ProcessUtils;
+import eu.stratuslab.hudson.utils.StagingManifest;
+import eu.stratuslab.hudson.utils.StagingManifest.FileEntry;
+
+/*
+ * Copies files and directories from the master to the staging directory of
+ * an instance. Only the blocks that differ from the manifest left on the
+ * instance by an earlier staging (for instance, in a baked image) are sent.
+ * Files missing on the instance are sent in one compressed tar stream; each
+ * run of changed blocks of the others is compressed and written in place
+ * with gzip and dd, so nothing but a POSIX shell and tar is needed there.
+ */
+public class FileStager {
+
+    public static final String MANIFEST_NAME = ".stratuslab-manifest";
+
+    public static final String BLOCKS_SENT_COUNTER = "staging.blocks.sent";
+
+    public static final String BLOCKS_SKIPPED_COUNTER = "staging.blocks.skipped";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final List<File> roots;
+
+    private final String directory;
+
+    private final long timeoutMillis;
+
+    public FileStager(List<File> roots, String directory, long timeoutMillis) {
+        this.roots = new ArrayList<File>(roots);
+        this.directory = directory;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void stage(Connection connection, TaskListener listener)
+            throws StratusLabException {
+
+        String fmt = "staging %d file(s) or directories to %s";
+        listener.getLogger().println(
+                String.format(fmt, roots.size(), directory));
+
+        try {
+
+            StagingManifest local = StagingManifest.build(roots);
+            StagingManifest remote = StagingManifest.parse(execute(connection,
+                    "cat " + quote(directory + "/" + MANIFEST_NAME)
+                            + " 2>/dev/null || true", null));
+
+            int sent = 0;
+            int total = 0;
+            List<FileEntry> added = new ArrayList<FileEntry>();
+            for (FileEntry entry : local.getEntries()) {
+                List<Integer> changed = remote.getChangedBlocks(entry);
+                sent += changed.size();
+                total += entry.blocks.size();
+                FileEntry previous = remote.getEntry(entry.path);
+                if (previous == null) {
+                    added.add(entry);
+                } else {
+                    stageFile(connection, entry, previous, changed);
+                }
+            }
+            if (!added.isEmpty()) {
+                stageNewFiles(connection, added);
+            }
+
+            SCPClient scp = connection.createSCPClient();
+            scp.put(local.toString().getBytes(UTF8), MANIFEST_NAME, directory);
+
+            Metrics.add(BLOCKS_SENT_COUNTER, sent);
+            Metrics.add(BLOCKS_SKIPPED_COUNTER, total - sent);
+
+            fmt = "staged %d file(s); sent %d of %d block(s)";
+            listener.getLogger().println(
+                    String.format(fmt, local.getEntries().size(), sent, total));
+
+        } catch (IOException e) {
+            e.printStackTrace(listener.getLogger());
+            listener.fatalError(e.getMessage());
+            throw new StratusLabException(e);
+        }
+    }
+
+    // Files that are not on the instance yet are sent together in a single
+    // tar stream rather than with a command per file.
+    private void stageNewFiles(Connection connection,
+            final List<FileEntry> entries) throws IOException,
+            StratusLabException {
+
+        String cmd = String.format("mkdir -p %s && tar -xzf - -C %s",
+                quote(directory), quote(directory));
+
+        execute(connection, cmd, new Payload() {
+            public void writeTo(OutputStream os) throws IOException {
+                TarOutputStream tar = new TarOutputStream(os);
+                tar.setLongFileMode(TarOutputStream.LONGFILE_GNU);
+                byte[] buffer = new byte[BUFFER_SIZE];
+                for (FileEntry entry : entries) {
+                    TarEntry tarEntry = new TarEntry(entry.path);
+                    tarEntry.setSize(entry.size);
+                    tarEntry.setModTime(entry.file.lastModified());
+                    tar.putNextEntry(tarEntry);
+                    InputStream is = new FileInputStream(entry.file);
+                    try {
+                        copy(is, tar, entry.size, buffer);
+                    } finally {
+                        ProcessUtils.closeReliably(is);
+                    }
+                    tar.closeEntry();
+                }
+                tar.finish();
+            }
+        });
+    }
+
+    private void stageFile(Connection connection, FileEntry entry,
+            FileEntry previous, List<Integer> changed) throws IOException,
+            StratusLabException {
+
+        String path = directory + "/" + entry.path;
+        String parent = path.substring(0, path.lastIndexOf('/'));
+
+        RandomAccessFile file = new RandomAccessFile(entry.file, "r");
+        try {
+            int i = 0;
+            while (i < changed.size()) {
+
+                // Consecutive blocks are sent together.
+                int first = changed.get(i).intValue();
+                int last = first;
+                while (i + 1 < changed.size()
+                        && changed.get(i + 1).intValue() == last + 1) {
+                    last++;
+                    i++;
+                }
+                i++;
+
+                String cmd = String.format(
+                        "mkdir -p %s && gzip -dc | dd of=%s bs=%d seek=%d "
+                                + "conv=notrunc 2>/dev/null", quote(parent),
+                        quote(path), StagingManifest.BLOCK_SIZE, first);
+                execute(connection, cmd, new BlockRun(file, first, last));
+            }
+        } finally {
+            ProcessUtils.closeReliably(file);
+        }
+
+        // Files that shrank must be cut.
+        if (previous.size != entry.size) {
+            String cmd = String.format(
+                    "mkdir -p %s && dd if=/dev/null of=%s bs=1 seek=%d "
+                            + "2>/dev/null", quote(parent), quote(path),
+                    entry.size);
+            execute(connection, cmd, null);
+        }
+    }
+
+    // Runs the command on the instance, feeding it the compressed payload if
+    // there is one, and returns its standard output.
+    private String execute(Connection connection, String cmd, Payload payload)
+            throws IOException, StratusLabException {
+
+        Session session = connection.openSession();
+        try {
+            session.execCommand(cmd);
+
+            OutputStream stdin = session.getStdin();
+            try {
+                if (payload != null) {
+                    GZIPOutputStream gzip = new GZIPOutputStream(stdin,
+                            BUFFER_SIZE);
+                    payload.writeTo(gzip);
+                    gzip.finish();
+                }
+            } finally {
+                ProcessUtils.closeReliably(stdin);
+            }
+
+            String output = read(session.getStdout());
+
+            int conditions = session.waitForCondition(
+                    ChannelCondition.EXIT_STATUS, timeoutMillis);
+            if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                throw new StratusLabException("timeout staging files: " + cmd);
+            }
+
+            Integer rc = session.getExitStatus();
+            if (rc == null || rc.intValue() != 0) {
+                String fmt = "error staging files; rc is %s: %s";
+                throw new StratusLabException(String.format(fmt, rc, cmd));
+            }
+
+            return output;
+
+        } finally {
+            session.close();
+        }
+    }
+
+    // Copies exactly length bytes through the buffer, so that the size
+    // announced to tar or dd always matches what is sent.
+    private static void copy(InputStream is, OutputStream os, long length,
+            byte[] buffer) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int n = is.read(buffer, 0,
+                    (int) Math.min(buffer.length, remaining));
+            if (n < 0) {
+                throw new IOException("file changed while staging");
+            }
+            os.write(buffer, 0, n);
+            remaining -= n;
+        }
+    }
+
+    // The uncompressed input of a command.
+    private interface Payload {
+        void writeTo(OutputStream os) throws IOException;
+    }
+
+    // A run of consecutive blocks, streamed from the file without holding
+    // the whole run in memory.
+    private static class BlockRun implements Payload {
+
+        private final RandomAccessFile file;
+
+        private final long offset;
+
+        private final long length;
+
+        BlockRun(RandomAccessFile file, int first, int last)
+                throws IOException {
+            this.file = file;
+            this.offset = (long) first * StagingManifest.BLOCK_SIZE;
+            long end = Math.min(file.length(), (long) (last + 1)
+                    * StagingManifest.BLOCK_SIZE);
+            this.length = Math.max(0L, end - offset);
+        }
+
+        public void writeTo(OutputStream os) throws IOException {
+            file.seek(offset);
+            copy(Channels.newInputStream(file.getChannel()), os, length,
+                    new byte[BUFFER_SIZE]);
+        }
+    }
+
+    private static String read(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+            os.write(buffer, 0, n);
+        }
+        return new String(os.toByteArray(), UTF8);
+    }
+
+    static String quote(String value) {
+        return "'" + value.replace("'", "'\\''") + "'";
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.model.Action;
+
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Health history of a cloud slave, shown as a page of its computer.
+ */
+public class HealthAction implements Action {
+
+    private final StratusLabComputer computer;
+
+    public HealthAction(StratusLabComputer computer) {
+        this.computer = computer;
+    }
+
+    public String getIconFileName() {
+        return "monitor.gif";
+    }
+
+    public String getDisplayName() {
+        return "Health";
+    }
+
+    public String getUrlName() {
+        return "health";
+    }
+
+    public StratusLabComputer getComputer() {
+        return computer;
+    }
+
+    // Most recent sample first.
+    public List<HealthSample> getSamples() {
+        List<HealthSample> samples = computer.getHealthHistory();
+        Collections.reverse(samples);
+        return samples;
+    }
+
+}
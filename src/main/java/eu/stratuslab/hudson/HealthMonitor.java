@@ -0,0 +1,304 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProvisioner.PlannedNode;
+import hudson.slaves.OfflineCause;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.utils.ManagedExecutor;
+import eu.stratuslab.hudson.utils.Metrics;
+
+/*
+ * Probes the health of the online cloud slaves every minute. A slave that
+ * is unhealthy for several probes in a row stops taking builds and a
+ * replacement is provisioned right away; the slave is terminated once its
+ * running builds have finished.
+ */
+@Extension
+public class HealthMonitor extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    public static final int UNHEALTHY_SAMPLES = 3;
+
+    public static final long PROBE_TIMEOUT_MILLIS = 30L * 1000L;
+
+    public static final String UNHEALTHY_COUNTER = "health.unhealthy";
+
+    public static final String REPLACED_COUNTER = "health.replaced";
+
+    public static final int PROBE_POOL_SIZE = 8;
+
+    // Probes have their own threads: queued behind launches they would time
+    // out during bursts and count against healthy slaves.
+    private static final ExecutorService PROBES = new ManagedExecutor(
+            "health", PROBE_POOL_SIZE, ManagedExecutor.UNBOUNDED);
+
+    // Replacements whose instance is still being created.
+    private static final List<PlannedNode> REPLACEMENTS = new ArrayList<PlannedNode>();
+
+    public HealthMonitor() {
+        super("StratusLab health monitor");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws InterruptedException {
+
+        addFinishedReplacements();
+
+        // Probes run concurrently so that a hung slave doesn't delay the
+        // others.
+        List<StratusLabComputer> computers = new ArrayList<StratusLabComputer>();
+        List<ProbeTask> tasks = new ArrayList<ProbeTask>();
+        List<Future<HealthSample>> samples = new ArrayList<Future<HealthSample>>();
+
+        for (Computer c : Hudson.getInstance().getComputers()) {
+            if (!(c instanceof StratusLabComputer)) {
+                continue;
+            }
+            StratusLabComputer computer = (StratusLabComputer) c;
+            if (computer.getOfflineCause() instanceof UnhealthyCause) {
+                terminateIfIdle(computer);
+            } else if (computer.isOnline()) {
+                ProbeTask task = new ProbeTask(computer);
+                try {
+                    samples.add(PROBES.submit(task));
+                } catch (RejectedExecutionException e) {
+                    LOGGER.warning("health probe of " + computer.getName()
+                            + " rejected");
+                    continue;
+                }
+                computers.add(computer);
+                tasks.add(task);
+            }
+        }
+
+        for (int i = 0; i < computers.size(); i++) {
+            HealthSample sample = getSample(tasks.get(i), samples.get(i),
+                    PROBE_TIMEOUT_MILLIS);
+            if (sample == null) {
+                LOGGER.info("health probe of " + computers.get(i).getName()
+                        + " did not start in time; sample skipped");
+            } else {
+                check(computers.get(i), sample);
+            }
+        }
+    }
+
+    // Returns null if the probe never got a thread: a busy master says
+    // nothing about the health of the slave. A probe that started late
+    // still gets the full timeout.
+    static HealthSample getSample(ProbeTask task, Future<HealthSample> future,
+            long timeoutMillis) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            while (true) {
+                long wait = Math.max(0L, deadline - System.currentTimeMillis());
+                try {
+                    return future.get(wait, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    long started = task.getStartedMillis();
+                    if (started == 0L) {
+                        future.cancel(false);
+                        return null;
+                    }
+                    if (started + timeoutMillis <= System.currentTimeMillis()) {
+                        future.cancel(true);
+                        return HealthSample.failed("health probe timed out");
+                    }
+                    deadline = started + timeoutMillis;
+                }
+            }
+        } catch (ExecutionException e) {
+            return HealthSample.failed("health probe failed: "
+                    + e.getCause().getMessage());
+        }
+    }
+
+    private static void check(StratusLabComputer computer, HealthSample sample) {
+
+        int unhealthy = computer.recordHealth(sample);
+        if (unhealthy < UNHEALTHY_SAMPLES) {
+            return;
+        }
+
+        CloudSlave slave = computer.getNode();
+        if (slave == null) {
+            return;
+        }
+
+        String problem = sample.getProblem();
+        LOGGER.warning("taking unhealthy slave " + computer.getName()
+                + " offline: " + problem);
+        Metrics.increment(UNHEALTHY_COUNTER);
+
+        computer.setTemporarilyOffline(true, new UnhealthyCause(problem));
+        provisionReplacement(slave);
+        terminateIfIdle(computer);
+    }
+
+    private static void terminateIfIdle(StratusLabComputer computer) {
+
+        CloudSlave slave = computer.getNode();
+        if (slave != null && computer.isIdle()) {
+            LOGGER.info("terminating unhealthy slave " + computer.getName());
+            try {
+                // Degraded instances are not worth parking.
+                slave.terminate();
+            } catch (IOException e) {
+                LOGGER.warning("cannot terminate " + computer.getName() + ": "
+                        + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void provisionReplacement(CloudSlave slave) {
+
+        SlaveTemplate template = slave.getTemplate();
+        Label label = Hudson.getInstance().getLabel(slave.getLabelString());
+        if (template == null || label == null) {
+            return;
+        }
+
+        for (Cloud cloud : Hudson.getInstance().clouds) {
+            if (cloud instanceof StratusLabCloud
+                    && ((StratusLabCloud) cloud).getTemplateById(template
+                            .getId()) != null && cloud.canProvision(label)) {
+
+                Collection<PlannedNode> planned = cloud.provision(label,
+                        template.getExecutorCount());
+                synchronized (REPLACEMENTS) {
+                    REPLACEMENTS.addAll(planned);
+                }
+                Metrics.add(REPLACED_COUNTER, planned.size());
+                return;
+            }
+        }
+    }
+
+    // Adds the replacements whose instance is ready, as the node
+    // provisioner does for its own planned nodes, without holding a thread
+    // while they are created.
+    private static void addFinishedReplacements() throws InterruptedException {
+
+        List<PlannedNode> finished = new ArrayList<PlannedNode>();
+        synchronized (REPLACEMENTS) {
+            for (Iterator<PlannedNode> i = REPLACEMENTS.iterator(); i
+                    .hasNext();) {
+                PlannedNode planned = i.next();
+                if (planned.future.isDone()) {
+                    finished.add(planned);
+                    i.remove();
+                }
+            }
+        }
+
+        for (PlannedNode planned : finished) {
+            try {
+                Node node = planned.future.get();
+                Hudson.getInstance().addNode(node);
+                LOGGER.info("added replacement slave " + node.getNodeName());
+            } catch (CancellationException e) {
+                LOGGER.warning("replacement slave " + planned.displayName
+                        + " was cancelled");
+            } catch (ExecutionException e) {
+                LOGGER.warning("cannot provision replacement slave: "
+                        + e.getCause().getMessage());
+            } catch (IOException e) {
+                LOGGER.warning("cannot add replacement slave: "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    static class ProbeTask implements Callable<HealthSample> {
+
+        private final StratusLabComputer computer;
+
+        // Zero until a thread picks the probe up.
+        private volatile long startedMillis;
+
+        public ProbeTask(StratusLabComputer computer) {
+            this.computer = computer;
+        }
+
+        public long getStartedMillis() {
+            return startedMillis;
+        }
+
+        public HealthSample call() throws Exception {
+            startedMillis = System.currentTimeMillis();
+            VirtualChannel channel = computer.getChannel();
+            CloudSlave slave = computer.getNode();
+            if (channel == null || slave == null) {
+                return HealthSample.failed("slave is not connected");
+            }
+            return channel.call(new HealthProbe(slave.getRemoteFS()));
+        }
+    }
+
+    public static class UnhealthyCause extends OfflineCause {
+
+        public final String problem;
+
+        public UnhealthyCause(String problem) {
+            this.problem = problem;
+        }
+
+        @Override
+        public String toString() {
+            return "unhealthy: " + problem;
+        }
+    }
+
+}
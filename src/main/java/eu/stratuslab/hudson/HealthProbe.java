@@ -0,0 +1,125 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.remoting.Callable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+/*
+ * Runs on the slave over its channel and measures the load average, the
+ * free space in the remote FS root and, on Linux, the available memory and
+ * used swap. Only the JDK is used (not even the plugin's utilities), so
+ * nothing else is loaded into the slave.
+ */
+@SuppressWarnings("serial")
+public class HealthProbe implements Callable<HealthSample, IOException> {
+
+    private static final long MB = 1024L * 1024L;
+
+    private final String remoteFS;
+
+    public HealthProbe(String remoteFS) {
+        this.remoteFS = remoteFS;
+    }
+
+    public HealthSample call() throws IOException {
+
+        double load = ManagementFactory.getOperatingSystemMXBean()
+                .getSystemLoadAverage();
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        File root = new File(remoteFS);
+        long freeDisk = root.isDirectory() ? root.getUsableSpace() / MB : -1L;
+
+        long[] memory = readMemoryInfo(new File("/proc/meminfo"));
+
+        return new HealthSample(load, processors, freeDisk, memory[0],
+                memory[1]);
+    }
+
+    // Available memory, used swap and total memory in MB, or -1 if unknown.
+    static long[] readMemoryInfo(File meminfo) {
+
+        long total = -1L;
+        long available = -1L;
+        long free = 0L;
+        long cached = 0L;
+        long swapTotal = -1L;
+        long swapFree = -1L;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(meminfo), Charset.forName("UTF-8")));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("[:\\s]+");
+                if (fields.length < 2) {
+                    continue;
+                }
+                long kb = Long.parseLong(fields[1]);
+                if ("MemTotal".equals(fields[0])) {
+                    total = kb;
+                } else if ("MemAvailable".equals(fields[0])) {
+                    available = kb;
+                } else if ("MemFree".equals(fields[0])) {
+                    free = kb;
+                } else if ("Cached".equals(fields[0])) {
+                    cached = kb;
+                } else if ("SwapTotal".equals(fields[0])) {
+                    swapTotal = kb;
+                } else if ("SwapFree".equals(fields[0])) {
+                    swapFree = kb;
+                }
+            }
+        } catch (IOException e) {
+            return new long[] { -1L, -1L, -1L };
+        } catch (NumberFormatException e) {
+            return new long[] { -1L, -1L, -1L };
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException consumed) {
+                }
+            }
+        }
+
+        // Older kernels don't report MemAvailable.
+        if (available < 0L) {
+            available = free + cached;
+        }
+
+        long swapUsed = (swapTotal >= 0L && swapFree >= 0L) ? swapTotal
+                - swapFree : -1L;
+
+        return new long[] { available / 1024L,
+                (swapUsed >= 0L) ? swapUsed / 1024L : -1L,
+                (total >= 0L) ? total / 1024L : -1L };
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/*
+ * Health of a slave as measured by a HealthProbe. Values that could not be
+ * measured are negative and are not checked.
+ */
+@SuppressWarnings("serial")
+public class HealthSample implements Serializable {
+
+    public static final long MIN_FREE_DISK_MB = 1024L;
+
+    public static final long MIN_AVAILABLE_MEMORY_MB = 32L;
+
+    public static final double MAX_LOAD_PER_PROCESSOR = 4.0;
+
+    public final long timestamp;
+
+    public final double loadAverage;
+
+    public final int processors;
+
+    public final long freeDiskMB;
+
+    public final long availableMemoryMB;
+
+    public final long swapUsedMB;
+
+    // Set if the probe itself failed.
+    public final String error;
+
+    public HealthSample(double loadAverage, int processors, long freeDiskMB,
+            long availableMemoryMB, long swapUsedMB) {
+        this(System.currentTimeMillis(), loadAverage, processors, freeDiskMB,
+                availableMemoryMB, swapUsedMB, null);
+    }
+
+    private HealthSample(long timestamp, double loadAverage, int processors,
+            long freeDiskMB, long availableMemoryMB, long swapUsedMB,
+            String error) {
+        this.timestamp = timestamp;
+        this.loadAverage = loadAverage;
+        this.processors = processors;
+        this.freeDiskMB = freeDiskMB;
+        this.availableMemoryMB = availableMemoryMB;
+        this.swapUsedMB = swapUsedMB;
+        this.error = error;
+    }
+
+    public static HealthSample failed(String error) {
+        return new HealthSample(System.currentTimeMillis(), -1.0, -1, -1L,
+                -1L, -1L, error);
+    }
+
+    // Returns null for a healthy slave.
+    public String getProblem() {
+
+        if (error != null) {
+            return error;
+        }
+
+        if (freeDiskMB >= 0L && freeDiskMB < MIN_FREE_DISK_MB) {
+            return String.format("only %d MB free in remote FS", freeDiskMB);
+        }
+
+        // A machine that has run out of memory swaps for every build.
+        if (availableMemoryMB >= 0L
+                && availableMemoryMB < MIN_AVAILABLE_MEMORY_MB
+                && swapUsedMB > 0L) {
+            String fmt = "only %d MB of memory available, %d MB swapped";
+            return String.format(fmt, availableMemoryMB, swapUsedMB);
+        }
+
+        if (loadAverage >= 0.0 && processors > 0
+                && loadAverage > MAX_LOAD_PER_PROCESSOR * processors) {
+            String fmt = "load average %.1f on %d processor(s)";
+            return String.format(fmt, loadAverage, processors);
+        }
+
+        return null;
+    }
+
+    public Date getTime() {
+        return new Date(timestamp);
+    }
+
+    public boolean isHealthy() {
+        return getProblem() == null;
+    }
+
+    @Override
+    public String toString() {
+        if (error != null) {
+            return error;
+        }
+        String fmt = "load=%.2f/%d, disk=%dMB, memory=%dMB, swap=%dMB";
+        return String.format(fmt, loadAverage, processors, freeDiskMB,
+                availableMemoryMB, swapUsedMB);
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.model.TaskListener;
+import hudson.util.LogTaskListener;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.StratusLabProxy.InstanceInfo;
+import eu.stratuslab.hudson.utils.LaunchExecutors;
+import eu.stratuslab.hudson.utils.Metrics;
+
+/*
+ * Bakes the image of a slave template: starts the Marketplace image with
+ * save enabled, prepares it exactly like a cold launch (init script and
+ * slave.jar) and shuts it down, which creates the new image. Later slaves
+ * started from that image skip the init script.
+ */
+public final class ImageBaker implements Runnable {
+
+    public static final String BAKED_COUNTER = "images.baked";
+
+    public static final String FAILED_COUNTER = "images.bakeFailures";
+
+    public static final String BAKE_TIMER = "image.bake";
+
+    // Failed bakes of the same template version are not retried before.
+    private static final long RETRY_DELAY_MILLIS = 60L * 60L * 1000L;
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    private static final Map<String, ImageBaker> BAKING = new HashMap<String, ImageBaker>();
+
+    private static final Map<String, Long> FAILURES = new HashMap<String, Long>();
+
+    private final CloudParameters params;
+
+    private final SlaveTemplate template;
+
+    private final String hash;
+
+    private volatile InstanceInfo info;
+
+    private ImageBaker(CloudParameters params, SlaveTemplate template) {
+        this.params = params;
+        this.template = template;
+        this.hash = template.getBakeHash();
+    }
+
+    // Starts a bake in the background if the template wants one and has
+    // no up-to-date image.
+    public static void bakeIfNeeded(CloudParameters params,
+            SlaveTemplate template) {
+
+        if (!template.isBakingEnabled()
+                || BakedImages.getBakedImage(template) != null) {
+            return;
+        }
+
+        ImageBaker baker = new ImageBaker(params, template);
+
+        synchronized (ImageBaker.class) {
+            if (BAKING.containsKey(template.getId())) {
+                return;
+            }
+            Long failed = FAILURES.get(baker.hash);
+            if (failed != null
+                    && System.currentTimeMillis() - failed < RETRY_DELAY_MILLIS) {
+                return;
+            }
+            BAKING.put(template.getId(), baker);
+        }
+
+        LaunchExecutors.steps().submit(baker);
+    }
+
+    // Instances being baked must not be taken for orphans.
+    public static synchronized Set<Integer> getBakingInstances(
+            CloudParameters params) {
+
+        Set<Integer> vmids = new HashSet<Integer>();
+        for (ImageBaker baker : BAKING.values()) {
+            InstanceInfo i = baker.info;
+            if (i != null
+                    && baker.params.getAccountKey().equals(
+                            params.getAccountKey())) {
+                vmids.add(Integer.valueOf(i.vmid));
+            }
+        }
+        return vmids;
+    }
+
+    // The image is only complete once the disk has been saved and the
+    // instance is done; it stays registered as baking until then.
+    private void waitForImage() throws StratusLabException,
+            InterruptedException {
+
+        long deadline = System.currentTimeMillis() + template.timeout * 60L
+                * 1000L;
+
+        while (System.currentTimeMillis() < deadline) {
+            String status = StratusLabProxy.getInstanceStatus(params,
+                    String.valueOf(info.vmid));
+            if ("Done".equalsIgnoreCase(status)
+                    || "unknown".equalsIgnoreCase(status)) {
+                return;
+            } else if ("Failed".equalsIgnoreCase(status)) {
+                throw new StratusLabException("saving the image failed");
+            }
+            Thread.sleep(template.pollInterval * 1000L);
+        }
+
+        throw new StratusLabException("timeout waiting for the image to be saved");
+    }
+
+    public void run() {
+
+        TaskListener listener = new LogTaskListener(LOGGER, Level.INFO);
+        long start = System.currentTimeMillis();
+        boolean shutdown = false;
+
+        String fmt = "baking image from %s for template %s";
+        LOGGER.info(String.format(fmt, template.marketplaceId,
+                template.getId()));
+
+        try {
+
+            info = StratusLabProxy.startInstance(params,
+                    template.marketplaceId, template.instanceType, "bake-"
+                            + template.getId(), true);
+
+            StratusLabLauncher launcher = new StratusLabLauncher(
+                    new SlaveReference(params, template), info, false, start);
+            launcher.prepareInstance(listener);
+
+            String imageId = StratusLabProxy.shutdownInstance(params,
+                    String.valueOf(info.vmid));
+            shutdown = true;
+
+            if (imageId == null) {
+                throw new StratusLabException(
+                        "identifier of the new image not reported by the client");
+            }
+
+            waitForImage();
+
+            BakedImages.record(template, imageId, hash);
+
+            long elapsed = System.currentTimeMillis() - start;
+            Metrics.increment(BAKED_COUNTER);
+            Metrics.recordTime(BAKE_TIMER, elapsed);
+
+            fmt = "baked image %s for template %s in %d s";
+            LOGGER.info(String.format(fmt, imageId, template.getId(),
+                    elapsed / 1000L));
+
+        } catch (InterruptedException e) {
+
+            // Shutting down is not a failure of the template: the image is
+            // baked again on the next provisioning.
+            LOGGER.info("baking image for template " + template.getId()
+                    + " interrupted");
+            if (!shutdown) {
+                killInstance();
+            }
+            Thread.currentThread().interrupt();
+
+        } catch (Exception e) {
+
+            Metrics.increment(FAILED_COUNTER);
+            LOGGER.warning("cannot bake image for template "
+                    + template.getId() + ": " + e.getMessage());
+
+            synchronized (ImageBaker.class) {
+                FAILURES.put(hash, Long.valueOf(System.currentTimeMillis()));
+            }
+
+            if (!shutdown) {
+                killInstance();
+            }
+
+        } finally {
+            synchronized (ImageBaker.class) {
+                BAKING.remove(template.getId());
+            }
+        }
+    }
+
+    private void killInstance() {
+        if (info != null) {
+            try {
+                StratusLabProxy.killInstance(params, String.valueOf(info.vmid));
+            } catch (StratusLabException consumed) {
+                LOGGER.severe(consumed.getMessage());
+            }
+        }
+    }
+
+}
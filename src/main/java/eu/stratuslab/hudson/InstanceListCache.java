@@ -0,0 +1,80 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import eu.stratuslab.hudson.StratusLabProxy.InstanceStatus;
+
+/*
+ * Keeps a recent snapshot of the instances defined for each account so that
+ * periodic tasks do not all fork their own describe-instance process.
+ */
+public final class InstanceListCache {
+
+    public static final long DEFAULT_MAX_AGE_MILLIS = 30L * 1000L;
+
+    private static final ConcurrentMap<String, Snapshot> SNAPSHOTS = new ConcurrentHashMap<String, Snapshot>();
+
+    private InstanceListCache() {
+
+    }
+
+    public static List<InstanceStatus> getInstances(CloudParameters params)
+            throws StratusLabException {
+        return getInstances(params, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public static List<InstanceStatus> getInstances(CloudParameters params,
+            long maxAgeMillis) throws StratusLabException {
+
+        String key = params.getAccountKey();
+
+        Snapshot snapshot = SNAPSHOTS.get(key);
+        long now = System.currentTimeMillis();
+        if (snapshot == null || now - snapshot.timestamp > maxAgeMillis) {
+            List<InstanceStatus> instances = StratusLabProxy
+                    .describeInstances(params);
+            snapshot = new Snapshot(now, instances);
+            SNAPSHOTS.put(key, snapshot);
+        }
+
+        return snapshot.instances;
+    }
+
+    public static void invalidate(CloudParameters params) {
+        SNAPSHOTS.remove(params.getAccountKey());
+    }
+
+    private static class Snapshot {
+
+        public final long timestamp;
+
+        public final List<InstanceStatus> instances;
+
+        public Snapshot(long timestamp, List<InstanceStatus> instances) {
+            this.timestamp = timestamp;
+            this.instances = instances;
+        }
+    }
+
+}
@@ -0,0 +1,57 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.model.TaskListener;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.trilead.ssh2.Connection;
+
+/*
+ * One unit of work done on an instance while launching the slave. A step is
+ * only started once all of the steps that it depends on have succeeded.
+ */
+public abstract class LaunchStep {
+
+    public final String name;
+
+    public final List<LaunchStep> dependencies;
+
+    protected LaunchStep(String name, LaunchStep... dependencies) {
+        this.name = name;
+
+        List<LaunchStep> list = new ArrayList<LaunchStep>();
+        for (LaunchStep dependency : dependencies) {
+            list.add(dependency);
+        }
+        this.dependencies = Collections.unmodifiableList(list);
+    }
+
+    public abstract void execute(Connection connection, TaskListener listener)
+            throws StratusLabException;
+
+    public String toString() {
+        return name;
+    }
+
+}
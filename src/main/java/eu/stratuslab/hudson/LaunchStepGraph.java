@@ -0,0 +1,149 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.model.TaskListener;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+
+import com.trilead.ssh2.Connection;
+
+import eu.stratuslab.hudson.utils.Metrics;
+
+/*
+ * Runs a set of launch steps over a single ssh connection. Steps that don't
+ * depend on each other run concurrently, each one in its own channel of the
+ * connection. The time taken by each step is written to the launch log.
+ */
+public class LaunchStepGraph {
+
+    public static final String STEP_TIMER_PREFIX = "launch.step.";
+
+    private final List<LaunchStep> steps = new LinkedList<LaunchStep>();
+
+    public LaunchStepGraph add(LaunchStep step) {
+        steps.add(step);
+        return this;
+    }
+
+    public void run(Connection connection, TaskListener listener,
+            Executor executor) throws StratusLabException,
+            InterruptedException {
+
+        CompletionService<LaunchStep> service = new ExecutorCompletionService<LaunchStep>(
+                executor);
+
+        List<LaunchStep> pending = new LinkedList<LaunchStep>(steps);
+        Set<LaunchStep> finished = new HashSet<LaunchStep>();
+        StratusLabException failure = null;
+        int running = 0;
+
+        while (running > 0 || (failure == null && !pending.isEmpty())) {
+
+            // Nothing new is started after a failure, but the steps that
+            // are already running must finish before the connection is
+            // closed.
+            if (failure == null) {
+                for (Iterator<LaunchStep> i = pending.iterator(); i.hasNext();) {
+                    LaunchStep step = i.next();
+                    if (finished.containsAll(step.dependencies)) {
+                        i.remove();
+                        service.submit(new TimedStep(step, connection,
+                                listener));
+                        running++;
+                    }
+                }
+            }
+
+            if (running == 0) {
+                throw new StratusLabException("launch steps "
+                        + pending.toString() + " have unmet dependencies");
+            }
+
+            Future<LaunchStep> result = service.take();
+            running--;
+
+            try {
+                finished.add(result.get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = asStratusLabException(e.getCause());
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static StratusLabException asStratusLabException(Throwable t) {
+        if (t instanceof StratusLabException) {
+            return (StratusLabException) t;
+        } else {
+            return new StratusLabException(t);
+        }
+    }
+
+    private static class TimedStep implements Callable<LaunchStep> {
+
+        private final LaunchStep step;
+
+        private final Connection connection;
+
+        private final TaskListener listener;
+
+        public TimedStep(LaunchStep step, Connection connection,
+                TaskListener listener) {
+            this.step = step;
+            this.connection = connection;
+            this.listener = listener;
+        }
+
+        public LaunchStep call() throws StratusLabException {
+
+            long start = System.currentTimeMillis();
+
+            try {
+                step.execute(connection, listener);
+            } finally {
+                long elapsed = System.currentTimeMillis() - start;
+                Metrics.recordTime(STEP_TIMER_PREFIX + step.name, elapsed);
+
+                String fmt = "step %s finished in %d ms";
+                listener.getLogger().println(
+                        String.format(fmt, step.name, elapsed));
+            }
+
+            return step;
+        }
+    }
+
+}
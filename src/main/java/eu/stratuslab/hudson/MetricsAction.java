@@ -0,0 +1,113 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.RootAction;
+import hudson.slaves.Cloud;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import eu.stratuslab.hudson.SlaveTemplate.InstanceTypes;
+import eu.stratuslab.hudson.utils.ManagedExecutor;
+import eu.stratuslab.hudson.utils.Metrics;
+import eu.stratuslab.hudson.utils.Metrics.Timer;
+
+/*
+ * Read-only page with the counters and timers of the plugin, the state
+ * of the circuit of each endpoint, the load of its thread pools and the
+ * measured usage of each template. It is not shown in the side panel.
+ */
+@Extension
+public class MetricsAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "StratusLab Metrics";
+    }
+
+    public String getUrlName() {
+        return "stratuslab-metrics";
+    }
+
+    public Map<String, Long> getCounters() {
+        return Metrics.getCounters();
+    }
+
+    public Map<String, Timer> getTimers() {
+        return Metrics.getTimers();
+    }
+
+    public Map<String, CircuitBreaker.State> getCircuits() {
+        return CircuitBreaker.getStates();
+    }
+
+    public List<ManagedExecutor> getExecutors() {
+        return ManagedExecutor.getExecutors();
+    }
+
+    public List<TemplateUsage> getTemplateUsage() {
+        List<TemplateUsage> usage = new ArrayList<TemplateUsage>();
+        for (Cloud cloud : Hudson.getInstance().clouds) {
+            if (cloud instanceof StratusLabCloud) {
+                StratusLabCloud slCloud = (StratusLabCloud) cloud;
+                for (SlaveTemplate template : slCloud.templates) {
+                    usage.add(new TemplateUsage(template));
+                }
+            }
+        }
+        return usage;
+    }
+
+    public static class TemplateUsage {
+
+        public final SlaveTemplate template;
+
+        private final UsageStore store;
+
+        public TemplateUsage(SlaveTemplate template) {
+            this.template = template;
+            this.store = UsageStore.get(template);
+        }
+
+        public int getBuilds() {
+            return store.size();
+        }
+
+        public InstanceTypes getRecommended() {
+            return template.getRecommendedType();
+        }
+
+        public int getExecutors() {
+            return template.getExecutorCount();
+        }
+
+        public Map<String, UsageSample> getJobPeaks() {
+            return store.getJobPeaks();
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.model.Hudson;
+import hudson.model.Node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Generates unique node names for one prefix (the label name). The numbers
+ * are handed out from blocks reserved in the provisioning journal, so that
+ * names stay unique across restarts without scanning the nodes known to
+ * Hudson. Generating a name normally needs a single atomic increment and one
+ * string concatenation; the journal is only written once per block.
+ *
+ * A prefix without any reservation (for instance right after an upgrade
+ * from the global serial) starts after the highest number used by the
+ * existing nodes and the live journal entries, so that no live node is
+ * replaced by a new one with the same name.
+ */
+public class NameGenerator {
+
+    public static final long BLOCK_SIZE = 100L;
+
+    private static final ConcurrentMap<String, NameGenerator> GENERATORS = new ConcurrentHashMap<String, NameGenerator>();
+
+    private final ProvisioningJournal journal;
+
+    private final String name;
+
+    private final String prefix;
+
+    private final AtomicLong next;
+
+    // Numbers below the limit are reserved in the journal.
+    private volatile long limit;
+
+    public NameGenerator(ProvisioningJournal journal, String name) {
+        this(journal, name, Collections.<String> emptyList());
+    }
+
+    public NameGenerator(ProvisioningJournal journal, String name,
+            Collection<String> existingNames) {
+        this.journal = journal;
+        this.name = name;
+        this.prefix = name + "-";
+
+        long reserved = journal.getReservedNames(name);
+        long first = reserved;
+        if (reserved == 0L) {
+            List<String> names = new ArrayList<String>(existingNames);
+            for (ProvisioningJournal.Entry entry : journal.getLiveEntries()) {
+                names.add(entry.name);
+            }
+            first = getHighestNumber(names) + 1L;
+        }
+        this.next = new AtomicLong(Math.max(first, 1L));
+        this.limit = reserved;
+    }
+
+    public static NameGenerator get(String name) {
+        NameGenerator generator = GENERATORS.get(name);
+        if (generator == null) {
+            NameGenerator newGenerator = new NameGenerator(
+                    ProvisioningJournal.getInstance(), name, getNodeNames());
+            generator = GENERATORS.putIfAbsent(name, newGenerator);
+            if (generator == null) {
+                generator = newGenerator;
+            }
+        }
+        return generator;
+    }
+
+    private static List<String> getNodeNames() {
+        List<String> names = new ArrayList<String>();
+        for (Node node : Hudson.getInstance().getNodes()) {
+            names.add(node.getNodeName());
+        }
+        return names;
+    }
+
+    // Zero if no name has the prefix followed by a number.
+    private long getHighestNumber(Collection<String> names) {
+        long highest = 0L;
+        for (String s : names) {
+            if (s != null && s.startsWith(prefix)) {
+                try {
+                    highest = Math.max(highest, Long.parseLong(s
+                            .substring(prefix.length())));
+                } catch (NumberFormatException consumed) {
+                }
+            }
+        }
+        return highest;
+    }
+
+    public String next() {
+        long n = next.getAndIncrement();
+        if (n >= limit) {
+            reserve(n);
+        }
+        return prefix + n;
+    }
+
+    private synchronized void reserve(long n) {
+        if (n >= limit) {
+            long upTo = (n / BLOCK_SIZE + 1L) * BLOCK_SIZE;
+            journal.reserveNames(name, upTo);
+            limit = upTo;
+        }
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.StratusLabProxy.InstanceStatus;
+import eu.stratuslab.hudson.utils.Metrics;
+
+/*
+ * Periodically compares the instances defined in the cloud with the nodes
+ * known to Hudson. Instances started by the plugin that don't belong to any
+ * node (or to the parked instance pool) for longer than the grace period are
+ * killed. Parked instances that were not reused in time are killed as well.
+ */
+@Extension
+public class OrphanedInstanceCollector extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    public static final long GRACE_PERIOD_MILLIS = 15L * 60L * 1000L;
+
+    public static final String RECLAIMED_COUNTER = "orphans.reclaimed";
+
+    public static final String DETECTED_COUNTER = "orphans.detected";
+
+    // Time at which each unclaimed instance was first seen, keyed by the
+    // account and the VM identifier.
+    private final Map<String, Long> firstSeen = new HashMap<String, Long>();
+
+    public OrphanedInstanceCollector() {
+        super("StratusLab orphaned instance collector");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 5 * MIN;
+    }
+
+    @Override
+    protected synchronized void execute(TaskListener listener) {
+
+        Map<String, Long> unclaimed = new HashMap<String, Long>();
+        Set<String> accounts = new HashSet<String>();
+
+        for (Cloud cloud : Hudson.getInstance().clouds) {
+            if (cloud instanceof StratusLabCloud) {
+                for (CloudParameters params : ((StratusLabCloud) cloud)
+                        .getEndpointParameters()) {
+                    if (accounts.add(params.getAccountKey())) {
+                        collect(params, listener, unclaimed);
+                    }
+                }
+            }
+        }
+
+        firstSeen.clear();
+        firstSeen.putAll(unclaimed);
+
+        ParkedInstancePool.killExpiredInstances();
+    }
+
+    private void collect(CloudParameters params, TaskListener listener,
+            Map<String, Long> unclaimed) {
+
+        List<InstanceStatus> instances;
+        try {
+            instances = InstanceListCache.getInstances(params);
+        } catch (StratusLabException e) {
+            LOGGER.warning("cannot list instances: " + e.getMessage());
+            return;
+        }
+
+        Set<Integer> known = getKnownInstances(params);
+        known.addAll(ParkedInstancePool.getParkedInstances(params));
+        known.addAll(ImageBaker.getBakingInstances(params));
+        long now = System.currentTimeMillis();
+
+        for (InstanceStatus instance : instances) {
+
+            if (!StratusLabProxy.isPluginInstance(instance)
+                    || instance.isTerminated()
+                    || known.contains(Integer.valueOf(instance.vmid))) {
+                continue;
+            }
+
+            String key = params.getAccountKey() + "#" + instance.vmid;
+
+            Long seen = firstSeen.get(key);
+            if (seen == null) {
+                seen = Long.valueOf(now);
+                Metrics.increment(DETECTED_COUNTER);
+                LOGGER.info("unclaimed instance " + instance);
+            }
+
+            if (now - seen.longValue() < GRACE_PERIOD_MILLIS) {
+                unclaimed.put(key, seen);
+            } else {
+                reclaim(params, instance, listener, unclaimed, key, seen);
+            }
+        }
+    }
+
+    private void reclaim(CloudParameters params, InstanceStatus instance,
+            TaskListener listener, Map<String, Long> unclaimed, String key,
+            Long seen) {
+
+        String msg = "killing orphaned instance " + instance;
+        LOGGER.warning(msg);
+        listener.getLogger().println(msg);
+
+        try {
+
+            StratusLabProxy.killInstance(params, String.valueOf(instance.vmid));
+            Metrics.increment(RECLAIMED_COUNTER);
+            InstanceListCache.invalidate(params);
+
+        } catch (StratusLabException e) {
+
+            // Try again on the next run.
+            LOGGER.severe(e.getMessage());
+            listener.error(e.getMessage());
+            unclaimed.put(key, seen);
+        }
+    }
+
+    private static Set<Integer> getKnownInstances(CloudParameters params) {
+
+        Set<Integer> known = new HashSet<Integer>();
+
+        for (Node node : Hudson.getInstance().getNodes()) {
+            if (node instanceof CloudSlave) {
+                CloudSlave slave = (CloudSlave) node;
+                String account = slave.getReference().getAccountKey();
+                if (account.equals(params.getAccountKey())) {
+                    known.add(Integer.valueOf(slave.getInstanceInfo().vmid));
+                }
+            }
+        }
+
+        return known;
+    }
+
+}
@@ -0,0 +1,202 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.SlaveTemplate.InstanceTypes;
+import eu.stratuslab.hudson.StratusLabProxy.InstanceInfo;
+import eu.stratuslab.hudson.utils.Metrics;
+
+/*
+ * Running instances whose slaves were removed because they were idle. The
+ * instances are kept per template so that provisioning can revive them
+ * instead of booting new machines.
+ */
+public final class ParkedInstancePool {
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    public static final String PARKED_COUNTER = "instances.parked";
+
+    public static final String REVIVED_COUNTER = "instances.revived";
+
+    public static final String EXPIRED_COUNTER = "instances.parkingExpired";
+
+    private static final Map<String, LinkedList<ParkedInstance>> POOLS = new HashMap<String, LinkedList<ParkedInstance>>();
+
+    private ParkedInstancePool() {
+
+    }
+
+    public static synchronized boolean park(CloudParameters params,
+            SlaveTemplate template, InstanceInfo info) {
+
+        if (!template.isParkingEnabled()) {
+            return false;
+        }
+
+        long expiry = System.currentTimeMillis() + template.parkMinutes * 60L
+                * 1000L;
+
+        String key = getPoolKey(params, template, template.getLaunchType());
+        LinkedList<ParkedInstance> pool = POOLS.get(key);
+        if (pool == null) {
+            pool = new LinkedList<ParkedInstance>();
+            POOLS.put(key, pool);
+        }
+
+        // Most recently parked instances are reused first.
+        pool.addFirst(new ParkedInstance(params, info, expiry));
+
+        Metrics.increment(PARKED_COUNTER);
+        LOGGER.info("parked instance " + info);
+
+        return true;
+    }
+
+    public static InstanceInfo revive(CloudParameters params,
+            SlaveTemplate template, InstanceTypes type) {
+
+        List<ParkedInstance> expired = new LinkedList<ParkedInstance>();
+        InstanceInfo info = null;
+
+        synchronized (ParkedInstancePool.class) {
+            LinkedList<ParkedInstance> pool = POOLS.get(getPoolKey(params,
+                    template, type));
+            long now = System.currentTimeMillis();
+            while (info == null && pool != null && !pool.isEmpty()) {
+                ParkedInstance parked = pool.removeFirst();
+                if (parked.expiry > now) {
+                    info = parked.info;
+                } else {
+                    expired.add(parked);
+                }
+            }
+        }
+
+        // Killing forks a client process, so do it outside of the lock.
+        kill(expired);
+
+        if (info != null) {
+            Metrics.increment(REVIVED_COUNTER);
+            LOGGER.info("reviving parked instance " + info);
+        }
+
+        return info;
+    }
+
+    public static synchronized Set<Integer> getParkedInstances(
+            CloudParameters params) {
+
+        Set<Integer> vmids = new HashSet<Integer>();
+        for (List<ParkedInstance> pool : POOLS.values()) {
+            for (ParkedInstance parked : pool) {
+                if (parked.params.getAccountKey().equals(
+                        params.getAccountKey())) {
+                    vmids.add(Integer.valueOf(parked.info.vmid));
+                }
+            }
+        }
+        return vmids;
+    }
+
+    public static void killExpiredInstances() {
+
+        List<ParkedInstance> expired = new LinkedList<ParkedInstance>();
+
+        synchronized (ParkedInstancePool.class) {
+            long now = System.currentTimeMillis();
+            for (List<ParkedInstance> pool : POOLS.values()) {
+                for (Iterator<ParkedInstance> i = pool.iterator(); i.hasNext();) {
+                    ParkedInstance parked = i.next();
+                    if (parked.expiry <= now) {
+                        i.remove();
+                        expired.add(parked);
+                    }
+                }
+            }
+        }
+
+        kill(expired);
+    }
+
+    // Parked instances can only be reused by templates that would have
+    // produced an identical machine.
+    private static String getPoolKey(CloudParameters params,
+            SlaveTemplate template, InstanceTypes type) {
+
+        StringBuilder sb = new StringBuilder(params.getAccountKey());
+        sb.append('#');
+        sb.append(template.marketplaceId);
+        sb.append('#');
+        sb.append(type.tag());
+        sb.append('#');
+        sb.append(template.remoteUser);
+        sb.append('#');
+        sb.append(template.remoteFS);
+        sb.append('#');
+        sb.append((template.initScript != null) ? template.initScript
+                .hashCode() : 0);
+        return sb.toString();
+    }
+
+    private static void kill(List<ParkedInstance> expired) {
+
+        for (ParkedInstance parked : expired) {
+
+            LOGGER.info("killing expired parked instance " + parked.info);
+
+            try {
+                StratusLabProxy.killInstance(parked.params,
+                        String.valueOf(parked.info.vmid));
+                Metrics.increment(EXPIRED_COUNTER);
+            } catch (StratusLabException e) {
+                // The orphaned instance collector will pick it up later.
+                LOGGER.severe(e.getMessage());
+            }
+        }
+    }
+
+    private static class ParkedInstance {
+
+        public final CloudParameters params;
+
+        public final InstanceInfo info;
+
+        public final long expiry;
+
+        public ParkedInstance(CloudParameters params, InstanceInfo info,
+                long expiry) {
+            this.params = params;
+            this.info = info;
+            this.expiry = expiry;
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.slaves.RetentionStrategy;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Same as the CloudRetentionStrategy except that slaves of templates that
+ * allow it are parked rather than terminated once they have been idle for
+ * too long. Templates with adaptive retention use the idle time learned
+ * by their RetentionModel instead of the fixed one.
+ */
+public class ParkingRetentionStrategy extends
+        RetentionStrategy<StratusLabComputer> {
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    private final int idleMinutes;
+
+    public ParkingRetentionStrategy(int idleMinutes) {
+        this.idleMinutes = idleMinutes;
+    }
+
+    @Override
+    public synchronized long check(StratusLabComputer c) {
+
+        if (c.isIdle()) {
+
+            long idleMillis = System.currentTimeMillis()
+                    - c.getIdleStartMilliseconds();
+
+            CloudSlave slave = c.getNode();
+
+            if (idleMillis > getIdleTimeoutMillis(slave)) {
+
+                if (slave != null) {
+                    LOGGER.info("disconnecting idle slave " + c.getName());
+                    SlaveTemplate template = slave.getTemplate();
+                    if (template != null) {
+                        RetentionModel.get(template).recordIdleEnd(
+                                slave.getNodeName(),
+                                System.currentTimeMillis());
+                    }
+                    try {
+                        slave.parkOrTerminate();
+                    } catch (InterruptedException e) {
+                        LOGGER.log(Level.WARNING,
+                                "failed to terminate " + c.getName(), e);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.WARNING,
+                                "failed to terminate " + c.getName(), e);
+                    }
+                }
+            }
+        }
+
+        return 1;
+    }
+
+    private long getIdleTimeoutMillis(CloudSlave slave) {
+        long idleMillis = idleMinutes * 60L * 1000L;
+        SlaveTemplate template = (slave != null) ? slave.getTemplate() : null;
+        if (template != null && template.adaptiveRetention) {
+            return RetentionModel.get(template).getIdleTimeoutMillis(
+                    idleMillis);
+        }
+        return idleMillis;
+    }
+
+    @Override
+    public void start(StratusLabComputer c) {
+        c.connect(false);
+    }
+
+}
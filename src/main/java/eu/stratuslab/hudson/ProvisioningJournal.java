@@ -0,0 +1,525 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.slaves.Cloud;
+import hudson.slaves.NodeProperty;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.StratusLabProxy.InstanceInfo;
+import eu.stratuslab.hudson.StratusLabProxy.InstanceStatus;
+import eu.stratuslab.hudson.utils.ProcessUtils;
+
+/*
+ * Append-only journal of the provisioning of each node, kept in the Hudson
+ * root directory so that instances booting when the master stops are not
+ * lost. Each line holds the complete state of one node after an event, so
+ * only the last line for a node matters when the journal is replayed.
+ *
+ * Lines are written and synced by a single writer thread. Everything
+ * recorded while a sync is in progress goes into the next one, so bursts
+ * of events cost a single sync. The journal is rewritten with only the
+ * live nodes when it is replayed and whenever it grows too long.
+ */
+public final class ProvisioningJournal {
+
+    public enum State {
+        REQUESTED, ALLOCATED, RUNNING, ONLINE, TERMINATED
+    }
+
+    public static final String FILENAME = "stratuslab-journal.log";
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String NAMES_TAG = "NAMES";
+
+    private static final int COMPACTION_THRESHOLD = 1000;
+
+    private static final long SYNC_TIMEOUT_MILLIS = 10L * 1000L;
+
+    private static ProvisioningJournal journal;
+
+    private final File file;
+
+    // Live nodes only; terminated nodes are dropped.
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    // Highest node number reserved (exclusive) for each name prefix.
+    private final Map<String, Long> nameBlocks = new LinkedHashMap<String, Long>();
+
+    private final List<String> pending = new ArrayList<String>();
+
+    private long appended;
+
+    private long synced;
+
+    private int lines;
+
+    private boolean compactionRequested;
+
+    private Thread writer;
+
+    public ProvisioningJournal(File file) {
+        this.file = file;
+        load();
+    }
+
+    public static synchronized ProvisioningJournal getInstance() {
+        if (journal == null) {
+            File root = Hudson.getInstance().getRootDir();
+            journal = new ProvisioningJournal(new File(root, FILENAME));
+        }
+        return journal;
+    }
+
+    public void requested(String name, String description, String label,
+            SlaveTemplate template) {
+        record(new Entry(State.REQUESTED, name, description, label,
+                template.marketplaceId, null, null, -1, null));
+    }
+
+    // Returns only once the allocation is on disk (or the sync has taken
+    // too long): this is the event that must not be lost.
+    public void allocated(String name, CloudParameters params,
+            InstanceInfo info) {
+
+        long sequence = 0L;
+        synchronized (this) {
+            Entry entry = entries.get(name);
+            if (entry != null) {
+                sequence = record(new Entry(State.ALLOCATED, name,
+                        entry.description, entry.label, entry.marketplaceId,
+                        params.endpoint, params.username, info.vmid, info.ip));
+            }
+        }
+
+        if (sequence > 0L) {
+            awaitSync(sequence);
+        }
+    }
+
+    public synchronized void transition(String name, State state) {
+        Entry entry = entries.get(name);
+        if (entry != null) {
+            record(entry.withState(state));
+        }
+    }
+
+    // Returns once the reservation is on disk, so that numbers handed out
+    // before a crash are never handed out again.
+    public void reserveNames(String prefix, long limit) {
+        long sequence;
+        synchronized (this) {
+            nameBlocks.put(prefix, Long.valueOf(limit));
+            sequence = append(toNamesLine(prefix, limit));
+        }
+        awaitSync(sequence);
+    }
+
+    public synchronized long getReservedNames(String prefix) {
+        Long limit = nameBlocks.get(prefix);
+        return (limit != null) ? limit.longValue() : 0L;
+    }
+
+    public synchronized List<Entry> getLiveEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    public synchronized void compact() {
+        compactionRequested = true;
+        startWriter();
+        notifyAll();
+    }
+
+    synchronized long record(Entry entry) {
+
+        if (entry.state == State.TERMINATED) {
+            entries.remove(entry.name);
+        } else {
+            entries.put(entry.name, entry);
+        }
+
+        return append(entry.toLine());
+    }
+
+    private long append(String line) {
+
+        pending.add(line);
+        appended++;
+
+        startWriter();
+        notifyAll();
+
+        return appended;
+    }
+
+    boolean awaitSync(long sequence) {
+
+        long deadline = System.currentTimeMillis() + SYNC_TIMEOUT_MILLIS;
+
+        synchronized (this) {
+            long remaining = deadline - System.currentTimeMillis();
+            while (synced < sequence && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return synced >= sequence;
+        }
+    }
+
+    private void startWriter() {
+        if (writer == null) {
+            writer = new Thread(new Runnable() {
+                public void run() {
+                    writeLoop();
+                }
+            }, "StratusLab provisioning journal");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    private void writeLoop() {
+
+        while (true) {
+
+            List<String> batch;
+            boolean rewrite;
+            long sequence;
+
+            synchronized (this) {
+                while (pending.isEmpty() && !compactionRequested) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        writer = null;
+                        return;
+                    }
+                }
+
+                lines += pending.size();
+                rewrite = compactionRequested || lines > COMPACTION_THRESHOLD;
+                if (rewrite) {
+                    // The entries already include the pending events.
+                    batch = new ArrayList<String>();
+                    for (Map.Entry<String, Long> block : nameBlocks.entrySet()) {
+                        batch.add(toNamesLine(block.getKey(), block.getValue()
+                                .longValue()));
+                    }
+                    for (Entry entry : entries.values()) {
+                        batch.add(entry.toLine());
+                    }
+                    lines = batch.size();
+                    compactionRequested = false;
+                } else {
+                    batch = new ArrayList<String>(pending);
+                }
+                pending.clear();
+                sequence = appended;
+            }
+
+            try {
+                if (rewrite) {
+                    rewrite(batch);
+                } else {
+                    append(file, batch, true);
+                }
+            } catch (IOException e) {
+                LOGGER.severe("cannot write provisioning journal: "
+                        + e.getMessage());
+            }
+
+            synchronized (this) {
+                synced = sequence;
+                notifyAll();
+            }
+        }
+    }
+
+    private void rewrite(List<String> live) throws IOException {
+
+        File tmp = new File(file.getPath() + ".tmp");
+        append(tmp, live, false);
+
+        if (!tmp.renameTo(file)) {
+            throw new IOException("cannot rename " + tmp + " to " + file);
+        }
+    }
+
+    private static void append(File file, List<String> batch, boolean append)
+            throws IOException {
+
+        FileOutputStream os = new FileOutputStream(file, append);
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(os, UTF8);
+            for (String line : batch) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.flush();
+            os.getFD().sync();
+        } finally {
+            ProcessUtils.closeReliably(writer);
+            ProcessUtils.closeReliably(os);
+        }
+    }
+
+    private void load() {
+
+        if (!file.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(file), UTF8));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                if (line.startsWith(NAMES_TAG)) {
+                    loadNames(line);
+                    continue;
+                }
+                // A torn last line after a crash is simply ignored.
+                Entry entry = Entry.parse(line);
+                if (entry == null) {
+                    continue;
+                }
+                if (entry.state == State.TERMINATED) {
+                    entries.remove(entry.name);
+                } else {
+                    entries.put(entry.name, entry);
+                }
+            }
+
+        } catch (IOException e) {
+            LOGGER.severe("cannot read provisioning journal: "
+                    + e.getMessage());
+        } finally {
+            ProcessUtils.closeReliably(reader);
+        }
+    }
+
+    private static String toNamesLine(String prefix, long limit) {
+        return NAMES_TAG + Entry.SEPARATOR + prefix.replaceAll("\\s", " ")
+                + Entry.SEPARATOR + limit;
+    }
+
+    private void loadNames(String line) {
+        String[] fields = line.split(Entry.SEPARATOR, -1);
+        if (fields.length == 3) {
+            try {
+                nameBlocks.put(fields[1], Long.valueOf(fields[2]));
+            } catch (IllegalArgumentException consumed) {
+            }
+        }
+    }
+
+    // Nodes that were still being provisioned when the master stopped are
+    // added again if their instance is alive. Those that cannot be resolved
+    // are forgotten and their instances left to the orphan collector.
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void replay() {
+
+        Hudson hudson = Hudson.getInstance();
+        ProvisioningJournal journal = getInstance();
+
+        for (Entry entry : journal.getLiveEntries()) {
+
+            if (hudson.getNode(entry.name) != null) {
+                continue;
+            }
+
+            boolean reattached = false;
+            try {
+                reattached = reattach(hudson, entry);
+            } catch (Exception e) {
+                LOGGER.warning("cannot reattach " + entry.name + ": "
+                        + e.getMessage());
+            }
+
+            if (!reattached) {
+                journal.transition(entry.name, State.TERMINATED);
+            }
+        }
+
+        journal.compact();
+    }
+
+    private static boolean reattach(Hudson hudson, Entry entry)
+            throws Exception {
+
+        if (entry.vmid < 0) {
+            return false;
+        }
+
+        for (Cloud cloud : hudson.clouds) {
+            if (!(cloud instanceof StratusLabCloud)) {
+                continue;
+            }
+
+            StratusLabCloud slCloud = (StratusLabCloud) cloud;
+            SlaveTemplate template = slCloud.getTemplate(entry.label);
+            if (template == null
+                    || !template.marketplaceId.equals(entry.marketplaceId)) {
+                continue;
+            }
+
+            for (CloudParameters params : slCloud.getEndpointParameters()) {
+                if (params.endpoint.equals(entry.endpoint)
+                        && params.username.equals(entry.username)
+                        && isAlive(params, entry.vmid)) {
+
+                    // Instances that were online already ran the init script.
+                    boolean initialized = (entry.state == State.ONLINE);
+                    InstanceInfo info = new InstanceInfo(entry.vmid, entry.ip);
+
+                    hudson.addNode(new CloudSlave(params, template, info,
+                            initialized, System.currentTimeMillis(),
+                            entry.name, entry.description, template.remoteFS,
+                            template.getExecutorCount(), Node.Mode.NORMAL,
+                            entry.label, new LinkedList<NodeProperty<Node>>()));
+
+                    LOGGER.info("reattached instance " + info + " to "
+                            + entry.name);
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isAlive(CloudParameters params, int vmid)
+            throws StratusLabException {
+        for (InstanceStatus status : InstanceListCache.getInstances(params)) {
+            if (status.vmid == vmid) {
+                return !status.isTerminated();
+            }
+        }
+        return false;
+    }
+
+    public static class Entry {
+
+        static final String SEPARATOR = "\t";
+
+        private static final int FIELDS = 9;
+
+        public final State state;
+
+        public final String name;
+
+        public final String description;
+
+        public final String label;
+
+        public final String marketplaceId;
+
+        public final String endpoint;
+
+        public final String username;
+
+        public final int vmid;
+
+        public final String ip;
+
+        public Entry(State state, String name, String description,
+                String label, String marketplaceId, String endpoint,
+                String username, int vmid, String ip) {
+            this.state = state;
+            this.name = name;
+            this.description = description;
+            this.label = label;
+            this.marketplaceId = marketplaceId;
+            this.endpoint = endpoint;
+            this.username = username;
+            this.vmid = vmid;
+            this.ip = ip;
+        }
+
+        public Entry withState(State newState) {
+            return new Entry(newState, name, description, label,
+                    marketplaceId, endpoint, username, vmid, ip);
+        }
+
+        public String toLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(state.name());
+            for (String field : new String[] { name, description, label,
+                    marketplaceId, endpoint, username, String.valueOf(vmid),
+                    ip }) {
+                sb.append(SEPARATOR);
+                sb.append((field == null) ? "" : field.replaceAll("\\s",
+                        " "));
+            }
+            return sb.toString();
+        }
+
+        public static Entry parse(String line) {
+            String[] fields = line.split(SEPARATOR, -1);
+            if (fields.length != FIELDS) {
+                return null;
+            }
+            try {
+                return new Entry(State.valueOf(fields[0]), fields[1],
+                        fields[2], fields[3], fields[4], fields[5], fields[6],
+                        Integer.parseInt(fields[7]), fields[8]);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        public String toString() {
+            return toLine();
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Instances that have been requested but are not yet reported by their
+ * endpoint. They must be counted against the instance limits, otherwise
+ * every provisioning round until they appear would request more of them.
+ * The state is handed over to the new cloud when the configuration is
+ * saved, since the requests of the old cloud are still running.
+ */
+public class ProvisioningState {
+
+    private final Map<String, Integer> inFlight = new HashMap<String, Integer>();
+
+    public synchronized void reserve(CloudParameters params) {
+        inFlight.put(params.getAccountKey(), getInFlight(params) + 1);
+    }
+
+    public synchronized void release(CloudParameters params) {
+        int count = getInFlight(params) - 1;
+        if (count > 0) {
+            inFlight.put(params.getAccountKey(), count);
+        } else {
+            inFlight.remove(params.getAccountKey());
+        }
+    }
+
+    public synchronized int getInFlight(CloudParameters params) {
+        Integer count = inFlight.get(params.getAccountKey());
+        return (count != null) ? count : 0;
+    }
+
+    public synchronized String toString() {
+        return inFlight.toString();
+    }
+
+}
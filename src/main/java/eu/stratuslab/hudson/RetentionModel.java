@@ -0,0 +1,277 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Learns, for one template, the gaps between the end of a build on a node
+ * and the start of the next one on the same node, and the time it takes
+ * to boot a new slave. The idle timeout is the one that minimizes the
+ * expected cost of the next gap over the recent gaps: a gap shorter than
+ * the timeout costs its own length of idle time; a longer one costs the
+ * timeout plus a boot. This is the classic ski-rental trade-off, solved
+ * against the observed distribution.
+ *
+ * A node that is parked or terminated while idle only tells that its gap
+ * was at least as long as its idle time. Such gaps are censored samples:
+ * the distribution is estimated with the Kaplan-Meier product-limit
+ * estimator, which counts them as long as they were observed.
+ */
+public class RetentionModel {
+
+    public static final int MAX_SAMPLES = 200;
+
+    public static final int MIN_SAMPLES = 10;
+
+    public static final long MAX_IDLE_MILLIS = 60L * 60L * 1000L;
+
+    private static final double WEIGHT = 0.3;
+
+    private static final ConcurrentMap<String, RetentionModel> MODELS = new ConcurrentHashMap<String, RetentionModel>();
+
+    private final long[] gaps = new long[MAX_SAMPLES];
+
+    private final boolean[] censored = new boolean[MAX_SAMPLES];
+
+    private int count;
+
+    private int next;
+
+    private double bootMillis = -1.0;
+
+    // Builds running on each node and the end of its last build.
+    private final Map<String, NodeActivity> nodes = new HashMap<String, NodeActivity>();
+
+    // Recomputed only after new samples.
+    private long timeoutMillis = -1L;
+
+    public static RetentionModel get(SlaveTemplate template) {
+        String key = template.getId();
+        RetentionModel model = MODELS.get(key);
+        if (model == null) {
+            RetentionModel newModel = new RetentionModel();
+            model = MODELS.putIfAbsent(key, newModel);
+            if (model == null) {
+                model = newModel;
+            }
+        }
+        return model;
+    }
+
+    // A node is idle once all of its builds have completed.
+    public synchronized void recordCompletion(String node, long now) {
+        NodeActivity activity = getActivity(node);
+        activity.running = Math.max(0, activity.running - 1);
+        if (activity.running == 0) {
+            activity.lastCompleted = now;
+        }
+    }
+
+    // Only a start on an idle node ends a gap; builds that overlap with
+    // another one on the same node don't leave any.
+    public synchronized void recordStart(String node, long now) {
+        NodeActivity activity = getActivity(node);
+        if (activity.running == 0 && activity.lastCompleted > 0L
+                && now >= activity.lastCompleted) {
+            recordSample(now - activity.lastCompleted, false);
+        }
+        activity.running++;
+        activity.lastCompleted = 0L;
+    }
+
+    // The node is parked or terminated after being idle since its last
+    // build: its gap is at least that long.
+    public synchronized void recordIdleEnd(String node, long now) {
+        NodeActivity activity = nodes.remove(node);
+        if (activity != null && activity.running == 0
+                && activity.lastCompleted > 0L
+                && now >= activity.lastCompleted) {
+            recordSample(now - activity.lastCompleted, true);
+        }
+    }
+
+    public synchronized void forget(String node) {
+        nodes.remove(node);
+    }
+
+    public synchronized void recordGap(long millis) {
+        recordSample(millis, false);
+    }
+
+    public synchronized void recordCensoredGap(long millis) {
+        recordSample(millis, true);
+    }
+
+    private void recordSample(long millis, boolean isCensored) {
+        gaps[next] = millis;
+        censored[next] = isCensored;
+        next = (next + 1) % MAX_SAMPLES;
+        count = Math.min(count + 1, MAX_SAMPLES);
+        timeoutMillis = -1L;
+    }
+
+    private NodeActivity getActivity(String node) {
+        NodeActivity activity = nodes.get(node);
+        if (activity == null) {
+            activity = new NodeActivity();
+            nodes.put(node, activity);
+        }
+        return activity;
+    }
+
+    public synchronized void recordBoot(long millis) {
+        if (bootMillis < 0.0) {
+            bootMillis = millis;
+        } else {
+            bootMillis = bootMillis * (1.0 - WEIGHT) + millis * WEIGHT;
+        }
+        timeoutMillis = -1L;
+    }
+
+    // The default applies until enough has been learned.
+    public synchronized long getIdleTimeoutMillis(long defaultMillis) {
+        if (count < MIN_SAMPLES || bootMillis < 0.0) {
+            return defaultMillis;
+        }
+        if (timeoutMillis < 0L) {
+            timeoutMillis = chooseTimeout(Arrays.copyOf(gaps, count), Arrays
+                    .copyOf(censored, count), (long) bootMillis, Math.max(
+                    defaultMillis, MAX_IDLE_MILLIS));
+        }
+        return timeoutMillis;
+    }
+
+    static long chooseTimeout(long[] samples, long bootMillis, long maxMillis) {
+        return chooseTimeout(samples, new boolean[samples.length],
+                bootMillis, maxMillis);
+    }
+
+    // The expected cost is linear between two observed gaps, so its
+    // minimum is at zero, at one of the (uncensored) gaps or at the
+    // maximum.
+    static long chooseTimeout(long[] samples, boolean[] isCensored,
+            long bootMillis, long maxMillis) {
+
+        long best = 0L;
+        double bestCost = expectedCost(samples, isCensored, 0L, bootMillis);
+
+        for (int i = 0; i < samples.length; i++) {
+            long candidate = samples[i];
+            if (isCensored[i] || candidate > maxMillis) {
+                continue;
+            }
+            double cost = expectedCost(samples, isCensored, candidate,
+                    bootMillis);
+            if (cost < bestCost || (cost == bestCost && candidate < best)) {
+                best = candidate;
+                bestCost = cost;
+            }
+        }
+
+        double maxCost = expectedCost(samples, isCensored, maxMillis,
+                bootMillis);
+        if (maxCost < bestCost) {
+            best = maxMillis;
+        }
+
+        return best;
+    }
+
+    static double expectedCost(long[] gaps, long timeoutMillis,
+            long bootMillis) {
+        return expectedCost(gaps, new boolean[gaps.length], timeoutMillis,
+                bootMillis);
+    }
+
+    // The expected idle time is the integral of the probability that the
+    // gap is still running, up to the timeout; a boot is paid with the
+    // probability that the gap outlasts the timeout. Without censored
+    // samples this is the plain average over the gaps.
+    static double expectedCost(long[] gaps, boolean[] isCensored,
+            long timeoutMillis, long bootMillis) {
+
+        if (gaps.length == 0) {
+            return 0.0;
+        }
+
+        double survival = 1.0;
+        double idle = 0.0;
+        long previous = 0L;
+        int atRisk = gaps.length;
+
+        for (int i : sortedOrder(gaps, isCensored)) {
+            if (gaps[i] > timeoutMillis) {
+                break;
+            }
+            idle += survival * (gaps[i] - previous);
+            previous = gaps[i];
+            if (!isCensored[i]) {
+                survival *= (atRisk - 1.0) / atRisk;
+            }
+            atRisk--;
+        }
+
+        idle += survival * (timeoutMillis - previous);
+        return idle + bootMillis * survival;
+    }
+
+    // By length; a gap ending at the same time as a censored one is
+    // counted first, as the censored one was still running.
+    private static int[] sortedOrder(final long[] gaps,
+            final boolean[] isCensored) {
+
+        Integer[] order = new Integer[gaps.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = Integer.valueOf(i);
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long x = gaps[a.intValue()];
+                long y = gaps[b.intValue()];
+                if (x != y) {
+                    return (x < y) ? -1 : 1;
+                }
+                boolean cx = isCensored[a.intValue()];
+                boolean cy = isCensored[b.intValue()];
+                return (cx == cy) ? 0 : (cx ? 1 : -1);
+            }
+        });
+
+        int[] result = new int[order.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = order[i].intValue();
+        }
+        return result;
+    }
+
+    private static class NodeActivity {
+
+        int running;
+
+        long lastCompleted;
+    }
+
+}
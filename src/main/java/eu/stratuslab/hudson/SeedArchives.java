@@ -0,0 +1,168 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.FilePath;
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import eu.stratuslab.hudson.utils.Metrics;
+import eu.stratuslab.hudson.utils.ProcessUtils;
+
+/*
+ * Seed archives of the templates: compressed tar files of selected parts of
+ * the remote FS root (for instance, the local Maven repository and the SCM
+ * working copies) that are unpacked on fresh instances before the slave
+ * connects. The archive of a template is taken from one of its warm nodes
+ * after builds have run there; see SeedRefresher.
+ */
+public final class SeedArchives {
+
+    public static final String DIRECTORY = "stratuslab-seeds";
+
+    public static final String REFRESHED_COUNTER = "seeds.refreshed";
+
+    public static final String REFRESH_TIMER = "seed.refresh";
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    // Node that most recently completed a build, for each template whose
+    // archive is out of date.
+    private static final Map<String, String> STALE = new HashMap<String, String>();
+
+    private SeedArchives() {
+
+    }
+
+    // The includes are part of the name so that changing them invalidates
+    // the archive instead of unpacking the old selection.
+    public static File getArchive(SlaveTemplate template) {
+        File dir = new File(Hudson.getInstance().getRootDir(), DIRECTORY);
+        return getArchive(dir, template.getId(), template.seedIncludes);
+    }
+
+    static File getArchive(File dir, String templateId, String includes) {
+        int hash = (includes == null) ? 0 : includes.hashCode();
+        return new File(dir, String.format("%s-%08x.tar.gz", templateId, hash));
+    }
+
+    public static void markStale(SlaveTemplate template, String nodeName) {
+        markStale(template.getId(), nodeName);
+    }
+
+    static synchronized void markStale(String templateId, String nodeName) {
+        STALE.put(templateId, nodeName);
+    }
+
+    public static void retryLater(SlaveTemplate template, String nodeName) {
+        retryLater(template.getId(), nodeName);
+    }
+
+    // Keeps any node that built something in the meantime.
+    static synchronized void retryLater(String templateId, String nodeName) {
+        if (!STALE.containsKey(templateId)) {
+            STALE.put(templateId, nodeName);
+        }
+    }
+
+    public static synchronized Map<String, String> takeStale() {
+        Map<String, String> stale = new HashMap<String, String>(STALE);
+        STALE.clear();
+        return stale;
+    }
+
+    public static void refresh(SlaveTemplate template, FilePath root)
+            throws IOException, InterruptedException {
+
+        File archive = getArchive(template);
+        long start = System.currentTimeMillis();
+
+        int count = refresh(archive, root, template.seedIncludes);
+        deleteSuperseded(archive, template.getId());
+
+        long elapsed = System.currentTimeMillis() - start;
+        Metrics.increment(REFRESHED_COUNTER);
+        Metrics.recordTime(REFRESH_TIMER, elapsed);
+
+        String fmt = "refreshed seed archive of %s with %d file(s) (%d bytes, %d ms)";
+        LOGGER.info(String.format(fmt, template.description, count, archive
+                .length(), elapsed));
+    }
+
+    // The archive is written next to the old one and replaces it only once
+    // complete, so launches never read a partial archive.
+    static int refresh(File archive, FilePath root, String includes)
+            throws IOException, InterruptedException {
+
+        File dir = archive.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+
+        File tmp = new File(archive.getPath() + ".tmp");
+
+        int count;
+        boolean complete = false;
+        OutputStream os = null;
+        try {
+            os = new GZIPOutputStream(new FileOutputStream(tmp));
+            count = root.tar(os, includes);
+            os.close();
+            complete = true;
+        } finally {
+            ProcessUtils.closeReliably(os);
+            if (!complete && tmp.isFile() && !tmp.delete()) {
+                LOGGER.warning("cannot delete " + tmp);
+            }
+        }
+
+        if (!tmp.renameTo(archive)
+                && !(archive.delete() && tmp.renameTo(archive))) {
+            throw new IOException("cannot rename " + tmp + " to " + archive);
+        }
+        return count;
+    }
+
+    // Archives taken with other includes are never read again.
+    private static void deleteSuperseded(File archive, String templateId) {
+        File[] files = archive.getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        String pattern = Pattern.quote(templateId) + "-[0-9a-f]{8}\\.tar\\.gz";
+        for (File file : files) {
+            if (!file.equals(archive) && file.getName().matches(pattern)
+                    && !file.delete()) {
+                LOGGER.warning("cannot delete " + file);
+            }
+        }
+    }
+
+}
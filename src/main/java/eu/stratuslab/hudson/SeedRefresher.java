@@ -0,0 +1,116 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.OfflineCause;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/*
+ * Takes new seed archives from the nodes that ran builds since the last
+ * refresh. Nodes that are busy or gone are retried on the next run, as
+ * long as no other node of the same template built something since.
+ */
+@Extension
+public class SeedRefresher extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    public SeedRefresher() {
+        super("StratusLab seed archive refresher");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 30 * MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws InterruptedException {
+
+        Hudson hudson = Hudson.getInstance();
+
+        for (Map.Entry<String, String> stale : SeedArchives.takeStale()
+                .entrySet()) {
+
+            Node node = hudson.getNode(stale.getValue());
+            if (!(node instanceof CloudSlave)) {
+                continue;
+            }
+
+            CloudSlave slave = (CloudSlave) node;
+            SlaveTemplate template = slave.getTemplate();
+            if (template == null || !template.isSeedingEnabled()
+                    || !template.getId().equals(stale.getKey())) {
+                continue;
+            }
+
+            // Archiving a workspace while a build writes to it would give an
+            // inconsistent seed, so no build may start during the tar.
+            Computer computer = slave.toComputer();
+            if (computer == null || !computer.isOnline() || !computer.isIdle()
+                    || computer.isTemporarilyOffline()) {
+                SeedArchives.retryLater(template, slave.getNodeName());
+                continue;
+            }
+
+            SeedingCause cause = new SeedingCause();
+            computer.setTemporarilyOffline(true, cause);
+            try {
+                // A build may have been scheduled before the node went
+                // offline.
+                if (!computer.isIdle()) {
+                    SeedArchives.retryLater(template, slave.getNodeName());
+                    continue;
+                }
+                SeedArchives.refresh(template, slave.getRootPath());
+            } catch (IOException e) {
+                String msg = "cannot refresh seed archive from "
+                        + slave.getNodeName() + ": " + e.getMessage();
+                LOGGER.warning(msg);
+                listener.error(msg);
+            } finally {
+                // Don't undo another reason for being offline, such as a
+                // failed health check.
+                if (computer.getOfflineCause() == cause) {
+                    computer.setTemporarilyOffline(false, null);
+                }
+            }
+        }
+    }
+
+    public static class SeedingCause extends OfflineCause {
+
+        @Override
+        public String toString() {
+            return "taking seed archive";
+        }
+    }
+
+}
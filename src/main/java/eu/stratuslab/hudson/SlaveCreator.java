@@ -19,17 +19,24 @@
  */
 package eu.stratuslab.hudson;
 
+import static eu.stratuslab.hudson.StratusLabProxy.killInstance;
+import static eu.stratuslab.hudson.StratusLabProxy.startInstance;
 import hudson.model.Descriptor;
 import hudson.model.Node;
 import hudson.slaves.NodeProperty;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.logging.Logger;
 
+import eu.stratuslab.hudson.ProvisioningJournal.State;
+import eu.stratuslab.hudson.SlaveTemplate.InstanceTypes;
+import eu.stratuslab.hudson.StratusLabProxy.InstanceInfo;
+
 public class SlaveCreator implements Callable<Node> {
 
     private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
@@ -37,16 +44,36 @@ public class SlaveCreator implements Callable<Node> {
 
     private final SlaveTemplate template;
 
-    private final CloudParameters cloudParams;
+    // As planned by the cloud; the recommendation may change before the
+    // slave is created.
+    private final InstanceTypes type;
+
+    private final int executors;
+
+    // Endpoints to try, in order, until an instance is started.
+    private final List<CloudParameters> endpoints;
 
     private final String[] names;
 
-    public SlaveCreator(SlaveTemplate template, CloudParameters cloud,
-            String[] names) {
+    private final InstanceInfo parkedInstance;
+
+    private final ProvisioningState state;
+
+    private final long requestedMillis;
+
+    public SlaveCreator(SlaveTemplate template, InstanceTypes type,
+            int executors, List<CloudParameters> endpoints, String[] names,
+            InstanceInfo parkedInstance, ProvisioningState state) {
 
         this.template = template;
-        this.cloudParams = cloud;
+        this.type = type;
+        this.executors = executors;
+        this.endpoints = new ArrayList<CloudParameters>(endpoints);
         this.names = Arrays.copyOf(names, names.length);
+        this.parkedInstance = parkedInstance;
+        this.state = state;
+
+        requestedMillis = System.currentTimeMillis();
     }
 
     public Node call() throws IOException, StratusLabException,
@@ -56,13 +83,117 @@ public class SlaveCreator implements Callable<Node> {
 
         LOGGER.info("creating slave for " + names[2]);
 
-        CloudSlave slave = new CloudSlave(cloudParams, template, names[1],
-                names[2], template.remoteFS, template.executors,
-                Node.Mode.NORMAL, names[0], nodeProperties);
+        boolean revived = (parkedInstance != null);
+
+        ProvisioningJournal journal = ProvisioningJournal.getInstance();
+        journal.requested(names[1], names[2], names[0], template);
+
+        CloudParameters cloudParams = endpoints.get(0);
+        InstanceInfo info = parkedInstance;
+
+        // The reservation made by the cloud on the first endpoint ends once
+        // the instance has been defined (and so is counted) or has failed.
+        try {
+            for (int i = 0; info == null; i++) {
+                cloudParams = endpoints.get(i);
+                try {
+                    info = createInstance(cloudParams);
+                } catch (StratusLabException e) {
+                    if (i + 1 >= endpoints.size()) {
+                        journal.transition(names[1], State.TERMINATED);
+                        throw e;
+                    }
+                    String fmt = "cannot start instance on %s (%s); trying %s";
+                    LOGGER.warning(String.format(fmt, cloudParams.endpoint,
+                            e.getMessage(), endpoints.get(i + 1).endpoint));
+                }
+            }
+        } finally {
+            if (!revived) {
+                state.release(endpoints.get(0));
+            }
+        }
+
+        journal.allocated(names[1], cloudParams, info);
+
+        CloudSlave slave = null;
+        try {
+
+            slave = new CloudSlave(cloudParams, template, info, revived,
+                    requestedMillis, names[1], names[2], template.remoteFS,
+                    executors, Node.Mode.NORMAL, names[0], nodeProperties);
+
+        } finally {
+            if (slave == null) {
+                destroyInstance(cloudParams, info);
+                journal.transition(names[1], State.TERMINATED);
+            }
+        }
 
         LOGGER.info("slave created for " + names[2]);
 
         return slave;
     }
 
+    private InstanceInfo createInstance(CloudParameters cloudParams)
+            throws StratusLabException {
+
+        LOGGER.info("creating instance for " + names[1] + " on "
+                + cloudParams.endpoint);
+
+        EndpointStatistics statistics = EndpointStatistics.get(cloudParams);
+
+        // Set if the instance is to call back once it has booted.
+        String token = null;
+        String bootUrl = null;
+        if (template.bootCallback) {
+            token = BootCallbacks.register();
+            bootUrl = BootCallbacks.getUrl(token);
+            if (bootUrl == null) {
+                LOGGER.warning("Hudson URL not configured; polling for "
+                        + names[1]);
+                BootCallbacks.cancel(token);
+                token = null;
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+
+            InstanceInfo info = startInstance(cloudParams,
+                    BakedImages.getLaunchImage(template), type, names[1],
+                    false, bootUrl);
+            statistics.recordSuccess(System.currentTimeMillis() - start);
+
+            if (token != null) {
+                BootCallbacks.bind(token, BootCallbacks.getKey(cloudParams,
+                        info));
+            }
+
+            LOGGER.info("created instance with " + info);
+
+            return info;
+
+        } catch (StratusLabException e) {
+            statistics.recordFailure();
+            if (token != null) {
+                BootCallbacks.cancel(token);
+            }
+            throw e;
+        }
+    }
+
+    // Kill the instance right away if the node could not be created;
+    // otherwise nothing refers to it and it only uses up the quota.
+    private void destroyInstance(CloudParameters cloudParams, InstanceInfo info) {
+
+        LOGGER.warning("slave creation failed; killing instance " + info);
+
+        try {
+            killInstance(cloudParams, String.valueOf(info.vmid));
+        } catch (StratusLabException e) {
+            LOGGER.severe(e.getMessage());
+        }
+    }
+
 }
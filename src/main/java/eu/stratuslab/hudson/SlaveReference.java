@@ -0,0 +1,130 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.model.Hudson;
+import hudson.slaves.Cloud;
+
+import java.io.Serializable;
+
+import eu.stratuslab.hudson.utils.Interner;
+
+/*
+ * Identifies the account and the template of a node without copying them
+ * into the node configuration. The live StratusLabCloud configuration is
+ * looked up on each access so that nodes follow changes to the cloud; the
+ * last values found are kept in case the cloud or template disappears.
+ */
+@SuppressWarnings("serial")
+public class SlaveReference implements Serializable {
+
+    private static final Interner<SlaveReference> INTERNER = new Interner<SlaveReference>();
+
+    private final String accountKey;
+
+    private final String templateId;
+
+    private transient CloudParameters cloudParams;
+
+    private transient SlaveTemplate template;
+
+    public SlaveReference(CloudParameters cloudParams, SlaveTemplate template) {
+        this.accountKey = cloudParams.getAccountKey();
+        this.templateId = template.getId();
+        this.cloudParams = cloudParams;
+        this.template = template;
+    }
+
+    // All nodes created from the same template share one reference, and
+    // so also the values resolved by it.
+    public static SlaveReference intern(SlaveReference reference) {
+        return INTERNER.intern(reference);
+    }
+
+    protected Object readResolve() {
+        return intern(this);
+    }
+
+    public String getAccountKey() {
+        return accountKey;
+    }
+
+    public String getTemplateId() {
+        return templateId;
+    }
+
+    // Null only if the cloud or the template was removed before a restart.
+    public synchronized CloudParameters getCloudParameters() {
+        resolve();
+        return cloudParams;
+    }
+
+    public synchronized SlaveTemplate getTemplate() {
+        resolve();
+        return template;
+    }
+
+    private void resolve() {
+
+        Hudson hudson = Hudson.getInstance();
+        if (hudson == null) {
+            return;
+        }
+
+        for (Cloud cloud : hudson.clouds) {
+            if (cloud instanceof StratusLabCloud) {
+                StratusLabCloud slCloud = (StratusLabCloud) cloud;
+                SlaveTemplate t = slCloud.getTemplateById(templateId);
+                if (t != null) {
+                    for (CloudParameters p : slCloud.getEndpointParameters()) {
+                        if (accountKey.equals(p.getAccountKey())) {
+                            cloudParams = p;
+                            template = t;
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SlaveReference)) {
+            return false;
+        }
+        SlaveReference other = (SlaveReference) o;
+        return accountKey.equals(other.accountKey)
+                && templateId.equals(other.templateId);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * accountKey.hashCode() + templateId.hashCode();
+    }
+
+    public String toString() {
+        return accountKey + "#" + templateId;
+    }
+
+}
@@ -26,11 +26,15 @@ import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateIdleMinutes
 import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateInitScript;
 import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateInitScriptDir;
 import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateInitScriptName;
+import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateInitScriptOutputLimit;
+import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateInitScriptTimeout;
 import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateLabelString;
 import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateMarketplaceId;
+import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateParkMinutes;
 import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validatePollInterval;
 import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateRemoteFS;
 import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateSshPort;
+import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateStagedFiles;
 import static eu.stratuslab.hudson.utils.SlaveParameterUtils.validateTimeout;
 import hudson.Extension;
 import hudson.model.Describable;
@@ -38,15 +42,29 @@ import hudson.model.Descriptor;
 import hudson.model.Hudson;
 import hudson.util.FormValidation;
 
+import java.io.File;
 import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.UUID;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 
+import eu.stratuslab.hudson.utils.Interner;
+
 @SuppressWarnings("serial")
 public class SlaveTemplate implements Describable<SlaveTemplate>, Serializable {
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Interner<SlaveTemplate> INTERNER = new Interner<SlaveTemplate>();
+
     public enum InstanceTypes {
         T1_MICRO("t1.micro", 1, 128, 512), //
         M1_SMALL("m1.small", 1, 128, 1024), //
@@ -55,6 +73,9 @@ public class SlaveTemplate implements Describable<SlaveTemplate>, Serializable {
         C1_MEDIUM("c1.medium", 1, 256, 1024), //
         C1_XLARGE("c1.xlarge", 4, 2048, 2048);
 
+        // Builds waiting on I/O leave processors idle, but not forever.
+        public static final int MAX_EXECUTORS_PER_CPU = 2;
+
         private final String tag;
         private final int cpu;
         private final int ramMB;
@@ -77,6 +98,48 @@ public class SlaveTemplate implements Describable<SlaveTemplate>, Serializable {
             return label;
         }
 
+        public int cpu() {
+            return cpu;
+        }
+
+        public int ramMB() {
+            return ramMB;
+        }
+
+        // One executor per processor until builds have been measured, then
+        // as many builds as fit in both the processors and the memory. The
+        // footprint of a build already includes its share of the memory
+        // used by the system and the slave agent.
+        public int executorsFor(UsageSample footprint) {
+            if (footprint == null) {
+                return cpu;
+            }
+            int count = MAX_EXECUTORS_PER_CPU * cpu;
+            if (footprint.cpu > 0.0) {
+                count = Math.min(count, (int) (cpu / footprint.cpu));
+            }
+            if (footprint.memoryMB > 0L) {
+                double memory = footprint.memoryMB * UsageStore.MEMORY_HEADROOM;
+                count = Math.min(count, (int) (ramMB / memory));
+            }
+            return Math.max(1, count);
+        }
+
+        // The smallest type with enough processors and memory, or the
+        // largest one if none is big enough.
+        public static InstanceTypes smallestFitting(double cpu, long memoryMB) {
+            InstanceTypes best = null;
+            for (InstanceTypes type : values()) {
+                if (type.cpu >= cpu && type.ramMB >= memoryMB) {
+                    if (best == null || type.ramMB < best.ramMB
+                            || (type.ramMB == best.ramMB && type.cpu < best.cpu)) {
+                        best = type;
+                    }
+                }
+            }
+            return (best != null) ? best : C1_XLARGE;
+        }
+
         private String createLabel() {
             StringBuilder sb = new StringBuilder();
             sb.append(tag);
@@ -94,6 +157,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate>, Serializable {
 
     public final String marketplaceId;
     public final InstanceTypes instanceType;
+    public final boolean autoSize;
     public final String description;
     public final String remoteFS;
     public final String remoteUser;
@@ -102,25 +166,46 @@ public class SlaveTemplate implements Describable<SlaveTemplate>, Serializable {
     public final String initScriptDir;
     public final String initScriptName;
     public final String initScript;
+    public final int initScriptTimeout;
+    public final int initScriptOutputLimit;
+    public final boolean bakeImage;
+    public final String stagedFiles;
+    public final String stagingDir;
+    public final String seedIncludes;
     public final int executors;
+    public final boolean autoExecutors;
     public final String jvmOpts;
     public final int sshPort;
     public final int idleMinutes;
+    public final int parkMinutes;
+    public final boolean adaptiveRetention;
     public final long pollInterval;
     public final long timeout;
+    public final boolean bootCallback;
 
     public final List<String> labels;
 
+    // Stable identifier referenced by the nodes created from the template.
+    private String id;
+
+    // Appended to the node names to form their descriptions.
+    private transient volatile String nameSuffix;
+
     @DataBoundConstructor
     public SlaveTemplate(String marketplaceId, InstanceTypes instanceType,
-            String description, String remoteFS, String remoteUser,
-            String labelString, boolean initScriptFlag, String initScriptDir,
-            String initScriptName, String initScript, int executors,
-            String jvmOpts, int sshPort, int idleMinutes, long pollInterval,
-            long timeout) {
+            boolean autoSize, String description, String remoteFS,
+            String remoteUser, String labelString, boolean initScriptFlag,
+            String initScriptDir, String initScriptName, String initScript,
+            int initScriptTimeout, int initScriptOutputLimit,
+            boolean bakeImage, String stagedFiles, String stagingDir,
+            String seedIncludes, int executors, boolean autoExecutors,
+            String jvmOpts, int sshPort, int idleMinutes, int parkMinutes,
+            boolean adaptiveRetention, long pollInterval, long timeout,
+            boolean bootCallback, String id) {
 
         this.marketplaceId = marketplaceId;
         this.instanceType = instanceType;
+        this.autoSize = autoSize;
         this.description = description;
         this.remoteFS = remoteFS;
         this.remoteUser = getRemoteUser(remoteUser);
@@ -129,14 +214,26 @@ public class SlaveTemplate implements Describable<SlaveTemplate>, Serializable {
         this.initScriptDir = initScriptDir;
         this.initScriptName = initScriptName;
         this.initScript = initScript;
+        this.initScriptTimeout = initScriptTimeout;
+        this.initScriptOutputLimit = initScriptOutputLimit;
+        this.bakeImage = bakeImage;
+        this.stagedFiles = stagedFiles;
+        this.stagingDir = stagingDir;
+        this.seedIncludes = seedIncludes;
         this.executors = executors;
+        this.autoExecutors = autoExecutors;
         this.jvmOpts = jvmOpts;
         this.sshPort = sshPort;
         this.idleMinutes = idleMinutes;
+        this.parkMinutes = parkMinutes;
+        this.adaptiveRetention = adaptiveRetention;
         this.pollInterval = pollInterval;
         this.timeout = timeout;
+        this.bootCallback = bootCallback;
 
         this.labels = createLabelList(labelString);
+
+        this.id = isEmptyStringOrNull(id) ? UUID.randomUUID().toString() : id;
     }
 
     @SuppressWarnings("unchecked")
@@ -144,10 +241,146 @@ public class SlaveTemplate implements Describable<SlaveTemplate>, Serializable {
         return Hudson.getInstance().getDescriptor(getClass());
     }
 
+    // Templates saved by older versions have no identifier; derive one that
+    // stays the same across restarts until the configuration is saved.
+    public synchronized String getId() {
+        if (id == null) {
+            String key = marketplaceId + "#" + labelString;
+            id = UUID.nameUUIDFromBytes(key.getBytes(UTF8)).toString();
+        }
+        return id;
+    }
+
+    public String getNameSuffix() {
+        String suffix = nameSuffix;
+        if (suffix == null) {
+            final String fmt = " (%s, %s)";
+            suffix = String.format(fmt, marketplaceId, instanceType.tag());
+            nameSuffix = suffix;
+        }
+        return suffix;
+    }
+
+    // Equal templates read from the configuration or created when it is
+    // reloaded share a single instance.
+    public static SlaveTemplate intern(SlaveTemplate template) {
+        return INTERNER.intern(template);
+    }
+
+    protected Object readResolve() {
+        return intern(this);
+    }
+
+    private Object[] content() {
+        return new Object[] { getId(), marketplaceId, instanceType,
+                autoSize, description, remoteFS, remoteUser, labelString,
+                initScriptFlag, initScriptDir, initScriptName, initScript,
+                initScriptTimeout, initScriptOutputLimit, bakeImage,
+                stagedFiles, stagingDir, seedIncludes, executors,
+                autoExecutors, jvmOpts, sshPort, idleMinutes, parkMinutes,
+                adaptiveRetention, pollInterval, timeout, bootCallback };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SlaveTemplate)) {
+            return false;
+        }
+        return Arrays.equals(content(), ((SlaveTemplate) o).content());
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(content());
+    }
+
+    public boolean isBakingEnabled() {
+        return bakeImage && initScriptFlag && !isEmptyStringOrNull(initScript);
+    }
+
+    // Changes whenever a baked image would differ.
+    public String getBakeHash() {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (String s : new String[] { marketplaceId, initScriptDir,
+                    initScriptName, initScript, stagedFiles, stagingDir }) {
+                md.update(String.valueOf(s).getBytes(UTF8));
+                md.update((byte) 0);
+            }
+            return new BigInteger(1, md.digest()).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // One file or directory of the master per line.
+    public List<File> getStagedFiles() {
+        List<File> files = new ArrayList<File>();
+        if (stagedFiles != null) {
+            for (String line : stagedFiles.split("[\\r\\n]+")) {
+                if (!isEmptyStringOrNull(line.trim())) {
+                    files.add(new File(line.trim()));
+                }
+            }
+        }
+        return files;
+    }
+
+    public String getStagingDirectory() {
+        if (isEmptyStringOrNull(stagingDir)) {
+            return remoteFS + "staging";
+        }
+        String dir = stagingDir.trim();
+        return dir.endsWith("/") ? dir.substring(0, dir.length() - 1) : dir;
+    }
+
+    // The smallest type for the measured builds, or null until enough
+    // builds have been measured. With automatic executors, the type only
+    // needs to hold one build; the executors then fill it.
+    public InstanceTypes getRecommendedType() {
+        return UsageStore.get(this).recommend(autoExecutors ? 1 : executors);
+    }
+
+    // The recommended type when auto-sizing is enabled and there is one,
+    // the configured type otherwise.
+    public InstanceTypes getLaunchType() {
+        if (autoSize) {
+            InstanceTypes recommended = getRecommendedType();
+            if (recommended != null) {
+                return recommended;
+            }
+        }
+        return instanceType;
+    }
+
+    // The number of executors of new slaves: the configured one, or as
+    // many as the launch type can hold given the measured builds.
+    public int getExecutorCount() {
+        return getExecutorCount(getLaunchType());
+    }
+
+    public int getExecutorCount(InstanceTypes type) {
+        if (!autoExecutors) {
+            return executors;
+        }
+        return type.executorsFor(UsageStore.get(this).getFootprint());
+    }
+
+    public boolean isSeedingEnabled() {
+        return !isEmptyStringOrNull(seedIncludes);
+    }
+
     public int getExecutors() {
         return executors;
     }
 
+    public boolean isParkingEnabled() {
+        return parkMinutes > 0;
+    }
+
     public static String getRemoteUser(String remoteUser) {
         String user = remoteUser;
         if (isEmptyStringOrNull(remoteUser)) {
@@ -188,6 +421,21 @@ public class SlaveTemplate implements Describable<SlaveTemplate>, Serializable {
             return validateInitScript(initScript);
         }
 
+        public FormValidation doCheckInitScriptTimeout(
+                @QueryParameter int initScriptTimeout) {
+            return validateInitScriptTimeout(initScriptTimeout);
+        }
+
+        public FormValidation doCheckInitScriptOutputLimit(
+                @QueryParameter int initScriptOutputLimit) {
+            return validateInitScriptOutputLimit(initScriptOutputLimit);
+        }
+
+        public FormValidation doCheckStagedFiles(
+                @QueryParameter String stagedFiles) {
+            return validateStagedFiles(stagedFiles);
+        }
+
         public FormValidation doCheckRemoteFS(@QueryParameter String remoteFS) {
             return validateRemoteFS(remoteFS);
         }
@@ -200,6 +448,10 @@ public class SlaveTemplate implements Describable<SlaveTemplate>, Serializable {
             return validateIdleMinutes(idleMinutes);
         }
 
+        public FormValidation doCheckParkMinutes(@QueryParameter int parkMinutes) {
+            return validateParkMinutes(parkMinutes);
+        }
+
         public FormValidation doCheckPollInterval(
                 @QueryParameter long pollInterval) {
             return validatePollInterval(pollInterval);
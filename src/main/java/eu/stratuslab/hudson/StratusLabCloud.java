@@ -21,11 +21,13 @@ package eu.stratuslab.hudson;
 
 import static eu.stratuslab.hudson.utils.CloudParameterUtils.isEmptyStringOrNull;
 import static eu.stratuslab.hudson.utils.CloudParameterUtils.isPositiveInteger;
+import static eu.stratuslab.hudson.utils.CloudParameterUtils.validateCallsPerMinute;
 import static eu.stratuslab.hudson.utils.CloudParameterUtils.validateClientLocation;
+import static eu.stratuslab.hudson.utils.CloudParameterUtils.validateCoolDownSeconds;
 import static eu.stratuslab.hudson.utils.CloudParameterUtils.validateEndpoint;
+import static eu.stratuslab.hudson.utils.CloudParameterUtils.validateFailureThreshold;
 import static eu.stratuslab.hudson.utils.CloudParameterUtils.validateKeyFile;
 import hudson.Extension;
-import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
 import hudson.model.Label;
@@ -42,12 +44,21 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import net.sf.json.JSONObject;
+
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import eu.stratuslab.hudson.SlaveTemplate.InstanceTypes;
+import eu.stratuslab.hudson.StratusLabProxy.InstanceInfo;
+import eu.stratuslab.hudson.utils.LaunchExecutors;
+import eu.stratuslab.hudson.utils.LaunchExecutors.ExecutionMode;
+import eu.stratuslab.hudson.utils.ValidationCache;
 
 public class StratusLabCloud extends AbstractCloudImpl {
 
@@ -72,19 +83,38 @@ public class StratusLabCloud extends AbstractCloudImpl {
 
     public final int instanceLimit;
 
+    public final int failureThreshold;
+
+    public final int coolDownSeconds;
+
+    public final int mutatingCallsPerMinute;
+
+    public final int readCallsPerMinute;
+
+    // Only set in configurations saved when the execution mode was chosen
+    // for each cloud; it is now part of the global configuration.
+    private ExecutionMode executionMode;
+
     public final List<SlaveTemplate> templates;
 
+    public final List<CloudEndpoint> endpoints;
+
     private final CloudParameters params;
 
+    // Parameters for the primary endpoint followed by the additional ones.
+    private final List<CloudParameters> endpointParams;
+
     private final Map<String, SlaveTemplate> labelToTemplateMap;
 
-    private static final AtomicInteger serial = new AtomicInteger(0);
+    private transient ProvisioningState state;
 
     @DataBoundConstructor
     public StratusLabCloud(String clientLocation, String endpoint,
             String username, String password, String sshPublicKey,
             String sshPrivateKey, String sshPrivateKeyPassword,
-            int instanceLimit, List<SlaveTemplate> templates) {
+            int instanceLimit, int failureThreshold, int coolDownSeconds,
+            int mutatingCallsPerMinute, int readCallsPerMinute,
+            List<SlaveTemplate> templates, List<CloudEndpoint> endpoints) {
 
         super(CLOUD_NAME, String.valueOf(instanceLimit));
 
@@ -96,26 +126,120 @@ public class StratusLabCloud extends AbstractCloudImpl {
         this.sshPrivateKey = sshPrivateKey;
         this.sshPrivateKeyPassword = sshPrivateKeyPassword;
         this.instanceLimit = instanceLimit;
+        this.failureThreshold = failureThreshold;
+        this.coolDownSeconds = coolDownSeconds;
+        this.mutatingCallsPerMinute = mutatingCallsPerMinute;
+        this.readCallsPerMinute = readCallsPerMinute;
+
+        params = CloudParameters.intern(new CloudParameters(clientLocation,
+                endpoint, username, password, sshPublicKey, sshPrivateKey,
+                sshPrivateKeyPassword, instanceLimit));
+
+        this.templates = copyToImmutableList(internTemplates(templates));
 
-        params = new CloudParameters(clientLocation, endpoint, username,
-                password, sshPublicKey, sshPrivateKey, sshPrivateKeyPassword,
-                instanceLimit);
+        this.endpoints = copyToImmutableList(endpoints);
 
-        this.templates = copyToImmutableList(templates);
+        endpointParams = createEndpointParameters(params, this.endpoints);
+
+        configureEndpoints();
 
         labelToTemplateMap = mapLabelsToTemplates(this.templates);
 
+        StratusLabCloud predecessor = findPredecessor();
+        if (predecessor != null) {
+            state = predecessor.state;
+            logTemplateChanges(predecessor.templates, this.templates);
+        } else {
+            state = new ProvisioningState();
+        }
+
         String format = "configuration updated with %s label(s) and %s slave template(s)";
         LOGGER.info(String.format(format, labelToTemplateMap.size(),
                 this.templates.size()));
     }
 
-    private List<SlaveTemplate> copyToImmutableList(
+    // The cloud with the same primary account that this one replaces when
+    // the configuration is saved.
+    private StratusLabCloud findPredecessor() {
+
+        Hudson hudson = Hudson.getInstance();
+        if (hudson == null) {
+            return null;
+        }
+
+        for (Cloud cloud : hudson.clouds) {
+            if (cloud instanceof StratusLabCloud && cloud != this) {
+                StratusLabCloud c = (StratusLabCloud) cloud;
+                if (c.params.getAccountKey().equals(params.getAccountKey())
+                        && c.state != null) {
+                    return c;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // Unchanged templates are the same (interned) instances as before, so
+    // nodes and parked instances keep using them.
+    private static void logTemplateChanges(List<SlaveTemplate> oldTemplates,
+            List<SlaveTemplate> newTemplates) {
+
+        Map<String, SlaveTemplate> old = new HashMap<String, SlaveTemplate>();
+        for (SlaveTemplate template : oldTemplates) {
+            old.put(template.getId(), template);
+        }
+
+        int unchanged = 0;
+        int changed = 0;
+        int added = 0;
+        for (SlaveTemplate template : newTemplates) {
+            SlaveTemplate previous = old.remove(template.getId());
+            if (previous == null) {
+                added++;
+            } else if (previous == template) {
+                unchanged++;
+            } else {
+                changed++;
+            }
+        }
+
+        String fmt = "slave templates: %d unchanged, %d changed, %d added, %d removed";
+        LOGGER.info(String.format(fmt, unchanged, changed, added, old.size()));
+    }
+
+    private static <T> List<T> copyToImmutableList(List<T> values) {
+
+        ArrayList<T> list = new ArrayList<T>();
+        if (values != null) {
+            list.addAll(values);
+        }
+        list.trimToSize();
+        return Collections.unmodifiableList(list);
+    }
+
+    private static List<SlaveTemplate> internTemplates(
             List<SlaveTemplate> templates) {
 
-        ArrayList<SlaveTemplate> list = new ArrayList<SlaveTemplate>();
+        List<SlaveTemplate> list = new ArrayList<SlaveTemplate>();
         if (templates != null) {
-            list.addAll(templates);
+            for (SlaveTemplate template : templates) {
+                list.add(SlaveTemplate.intern(template));
+            }
+        }
+        return list;
+    }
+
+    private List<CloudParameters> createEndpointParameters(
+            CloudParameters primary, List<CloudEndpoint> endpoints) {
+
+        ArrayList<CloudParameters> list = new ArrayList<CloudParameters>();
+        list.add(primary);
+        for (CloudEndpoint e : endpoints) {
+            list.add(CloudParameters.intern(new CloudParameters(
+                    clientLocation, e.endpoint, e.username, e.password,
+                    sshPublicKey, sshPrivateKey, sshPrivateKeyPassword,
+                    e.instanceLimit)));
         }
         list.trimToSize();
         return Collections.unmodifiableList(list);
@@ -135,6 +259,71 @@ public class StratusLabCloud extends AbstractCloudImpl {
         return Collections.unmodifiableMap(map);
     }
 
+    public CloudParameters getCloudParameters() {
+        return params;
+    }
+
+    public List<CloudParameters> getEndpointParameters() {
+        return endpointParams;
+    }
+
+    public SlaveTemplate getTemplate(String labelName) {
+        return labelToTemplateMap.get(labelName);
+    }
+
+    public SlaveTemplate getTemplateById(String id) {
+        for (SlaveTemplate template : templates) {
+            if (template.getId().equals(id)) {
+                return template;
+            }
+        }
+        return null;
+    }
+
+    // Configurations saved before additional endpoints were supported.
+    protected Object readResolve() {
+        if (executionMode != null) {
+            ((DescriptorImpl) getDescriptor())
+                    .adoptExecutionMode(executionMode);
+            executionMode = null;
+        }
+        if (endpointParams == null) {
+            return new StratusLabCloud(clientLocation, endpoint, username,
+                    password, sshPublicKey, sshPrivateKey,
+                    sshPrivateKeyPassword, instanceLimit, failureThreshold,
+                    coolDownSeconds, mutatingCallsPerMinute,
+                    readCallsPerMinute, templates, null);
+        }
+        configureEndpoints();
+        if (state == null) {
+            state = new ProvisioningState();
+        }
+        return this;
+    }
+
+    // Non-positive values (older configurations) select the defaults.
+    private void configureEndpoints() {
+        for (CloudParameters p : endpointParams) {
+            CircuitBreaker.get(p).configure(failureThreshold, coolDownSeconds);
+            StratusLabProxy.getRateLimiter(p, true).configure(
+                    (mutatingCallsPerMinute > 0) ? mutatingCallsPerMinute
+                            : StratusLabProxy.DEFAULT_MUTATING_CALLS_PER_MINUTE);
+            StratusLabProxy.getRateLimiter(p, false).configure(
+                    (readCallsPerMinute > 0) ? readCallsPerMinute
+                            : StratusLabProxy.DEFAULT_READ_CALLS_PER_MINUTE);
+        }
+    }
+
+    private List<CloudParameters> getAvailableEndpoints() {
+        List<CloudParameters> available = new ArrayList<CloudParameters>();
+        for (CloudParameters p : endpointParams) {
+            if (CircuitBreaker.get(p).isCallPermitted()) {
+                available.add(p);
+            }
+        }
+        return available;
+    }
+
     @SuppressWarnings("unchecked")
     public Descriptor<Cloud> getDescriptor() {
         return Hudson.getInstance().getDescriptor(getClass());
@@ -160,21 +349,55 @@ public class StratusLabCloud extends AbstractCloudImpl {
         if (label != null) {
             SlaveTemplate template = labelToTemplateMap.get(label.getName());
 
-            int numberOfInstances = StratusLabProxy
-                    .getNumberOfDefinedInstances(params);
+            ImageBaker.bakeIfNeeded(params, template);
+
+            // Do not pile up requests on endpoints that are known to be
+            // down; the load will be provisioned again on a later tick.
+            List<CloudParameters> available = getAvailableEndpoints();
+            if (available.isEmpty()) {
+                LOGGER.warning("all endpoints are unavailable; not provisioning nodes");
+                return nodes;
+            }
+
+            EndpointSelector selector = new EndpointSelector();
+            for (CloudParameters p : available) {
+                int numberOfInstances = StratusLabProxy
+                        .getNumberOfDefinedInstances(p);
+                selector.addEndpoint(p, p.instanceLimit - numberOfInstances
+                        - state.getInFlight(p));
+            }
+
+            // Fixed for this round so that the planned capacity matches
+            // the machines that are started.
+            InstanceTypes type = template.getLaunchType();
+            int executors = template.getExecutorCount(type);
+
+            for (int i = 0; i < excessWorkload; i += executors) {
+
+                // Parked instances are already counted in the number of
+                // defined instances.
+                List<CloudParameters> candidates = new ArrayList<CloudParameters>();
+                InstanceInfo parked = reviveParkedInstance(template, type,
+                        candidates);
+
+                if (parked == null) {
+                    candidates = selector.rank();
+                }
 
-            for (int i = 0; i < excessWorkload; i += template.executors) {
-                if (numberOfInstances < params.instanceLimit) {
+                if (!candidates.isEmpty()) {
                     String[] names = generateDisplayNames(label, template);
-                    SlaveCreator c = new SlaveCreator(template, params, names);
-                    Future<Node> futureNode = Computer.threadPoolForRemoting
+                    SlaveCreator c = new SlaveCreator(template, type,
+                            executors, candidates, names, parked, state);
+                    Future<Node> futureNode = LaunchExecutors.launches()
                             .submit(c);
                     nodes.add(new PlannedNode(names[0], futureNode,
-                            template.executors));
-                    numberOfInstances++;
+                            executors));
+                    if (parked == null) {
+                        selector.reserve(candidates.get(0));
+                        state.reserve(candidates.get(0));
+                    }
                 } else {
-                    String fmt = "instance limit (%s) exceeded; not provisioning node";
-                    LOGGER.warning(String.format(fmt, params.instanceLimit));
+                    LOGGER.warning("instance limits of all endpoints exceeded; not provisioning node");
                 }
             }
         }
@@ -184,16 +407,25 @@ public class StratusLabCloud extends AbstractCloudImpl {
         return nodes;
     }
 
+    private InstanceInfo reviveParkedInstance(SlaveTemplate template,
+            InstanceTypes type, List<CloudParameters> candidates) {
+
+        for (CloudParameters p : endpointParams) {
+            InstanceInfo parked = ParkedInstancePool.revive(p, template, type);
+            if (parked != null) {
+                candidates.add(p);
+                return parked;
+            }
+        }
+
+        return null;
+    }
+
     public static String[] generateDisplayNames(Label label,
             SlaveTemplate template) {
 
-        final String fmt1 = "%s-%d";
-        final String fmt2 = "%s (%s, %s)";
-
-        String brief = String.format(fmt1, label.getName(),
-                serial.incrementAndGet());
-        String full = String.format(fmt2, brief, template.marketplaceId,
-                template.instanceType.tag());
+        String brief = NameGenerator.get(label.getName()).next();
+        String full = brief + template.getNameSuffix();
 
         return new String[] { label.getName(), brief, full };
     }
@@ -201,11 +433,57 @@ public class StratusLabCloud extends AbstractCloudImpl {
     @Extension
     public static class DescriptorImpl extends Descriptor<Cloud> {
 
+        // Shared by all clouds, as the executors belong to the JVM.
+        private ExecutionMode executionMode;
+
+        public DescriptorImpl() {
+            load();
+            LaunchExecutors.setMode(executionMode);
+        }
+
         @Override
         public String getDisplayName() {
             return CLOUD_NAME;
         }
 
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json)
+                throws FormException {
+            String mode = json.optString("executionMode", null);
+            if (mode != null) {
+                try {
+                    setExecutionMode(ExecutionMode.valueOf(mode));
+                } catch (IllegalArgumentException e) {
+                    throw new FormException("unknown execution mode: "
+                            + mode, "executionMode");
+                }
+            }
+            return true;
+        }
+
+        public synchronized ExecutionMode getExecutionMode() {
+            return (executionMode != null) ? executionMode
+                    : ExecutionMode.PLATFORM;
+        }
+
+        public ExecutionMode[] getExecutionModes() {
+            return ExecutionMode.values();
+        }
+
+        public synchronized void setExecutionMode(ExecutionMode mode) {
+            executionMode = mode;
+            LaunchExecutors.setMode(mode);
+            save();
+        }
+
+        // Takes the mode of the first cloud loaded from a configuration
+        // that still has one, unless a global mode has been chosen.
+        synchronized void adoptExecutionMode(ExecutionMode mode) {
+            if (executionMode == null) {
+                setExecutionMode(mode);
+            }
+        }
+
         public FormValidation doCheckClientLocation(
                 @QueryParameter String clientLocation) {
             return validateClientLocation(clientLocation);
@@ -252,21 +530,50 @@ public class StratusLabCloud extends AbstractCloudImpl {
             }
         }
 
+        public FormValidation doCheckFailureThreshold(
+                @QueryParameter int failureThreshold) {
+            return validateFailureThreshold(failureThreshold);
+        }
+
+        public FormValidation doCheckCoolDownSeconds(
+                @QueryParameter int coolDownSeconds) {
+            return validateCoolDownSeconds(coolDownSeconds);
+        }
+
+        public FormValidation doCheckMutatingCallsPerMinute(
+                @QueryParameter int mutatingCallsPerMinute) {
+            return validateCallsPerMinute(mutatingCallsPerMinute);
+        }
+
+        public FormValidation doCheckReadCallsPerMinute(
+                @QueryParameter int readCallsPerMinute) {
+            return validateCallsPerMinute(readCallsPerMinute);
+        }
+
+        // Runs in the background; clicking the button again while the test
+        // is running returns its result once available.
         public FormValidation doTestConnection(
                 @QueryParameter String clientLocation,
                 @QueryParameter String endpoint,
                 @QueryParameter String username, @QueryParameter String password) {
 
-            CloudParameters params = new CloudParameters(clientLocation,
+            final CloudParameters params = new CloudParameters(clientLocation,
                     endpoint, username, password, null, null, null, 1);
 
-            try {
-                StratusLabProxy.testConnection(params);
-            } catch (StratusLabException e) {
-                return FormValidation.error(e.getMessage());
-            }
-
-            return FormValidation.ok();
+            String key = "testConnection#" + clientLocation + "#" + endpoint
+                    + "#" + username + "#" + ValidationCache.digest(password);
+
+            return ValidationCache.validate(key,
+                    new Callable<FormValidation>() {
+                        public FormValidation call() {
+                            try {
+                                StratusLabProxy.testConnection(params);
+                            } catch (StratusLabException e) {
+                                return FormValidation.error(e.getMessage());
+                            }
+                            return FormValidation.ok();
+                        }
+                    });
         }
 
     }
@@ -21,10 +21,40 @@ package eu.stratuslab.hudson;
 
 import hudson.slaves.AbstractCloudComputer;
 
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
 public class StratusLabComputer extends AbstractCloudComputer<CloudSlave> {
 
+    public static final int HEALTH_HISTORY_SIZE = 60;
+
+    // Most recent sample last.
+    private final LinkedList<HealthSample> healthHistory = new LinkedList<HealthSample>();
+
+    private int unhealthySamples;
+
     public StratusLabComputer(CloudSlave slave) {
         super(slave);
+        addAction(new HealthAction(this));
+    }
+
+    // Returns the number of consecutive unhealthy samples.
+    public synchronized int recordHealth(HealthSample sample) {
+        healthHistory.add(sample);
+        if (healthHistory.size() > HEALTH_HISTORY_SIZE) {
+            healthHistory.removeFirst();
+        }
+        unhealthySamples = sample.isHealthy() ? 0 : unhealthySamples + 1;
+        return unhealthySamples;
+    }
+
+    public synchronized List<HealthSample> getHealthHistory() {
+        return new ArrayList<HealthSample>(healthHistory);
+    }
+
+    public synchronized HealthSample getLatestHealth() {
+        return healthHistory.isEmpty() ? null : healthHistory.getLast();
     }
 
 }
@@ -26,17 +26,34 @@ import hudson.slaves.CommandLauncher;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.DelegatingComputerLauncher;
 import hudson.slaves.SlaveComputer;
-import hudson.util.IOUtils;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
+import com.trilead.ssh2.ChannelCondition;
 import com.trilead.ssh2.Connection;
 import com.trilead.ssh2.SCPClient;
 import com.trilead.ssh2.Session;
 
+import eu.stratuslab.hudson.ProvisioningJournal.State;
 import eu.stratuslab.hudson.StratusLabProxy.InstanceInfo;
+import eu.stratuslab.hudson.utils.LaunchExecutors;
+import eu.stratuslab.hudson.utils.Metrics;
+import eu.stratuslab.hudson.utils.OutputForwarder;
+import eu.stratuslab.hudson.utils.OutputForwarder.OutputLimit;
+import eu.stratuslab.hudson.utils.ProcessUtils;
+import eu.stratuslab.hudson.utils.SlaveJarCache;
+import eu.stratuslab.hudson.utils.SshKeyCache.SshKey;
 
 public class StratusLabLauncher extends DelegatingComputerLauncher {
 
@@ -45,45 +62,120 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
 
     private static final Charset UTF8 = Charset.forName("UTF-8");
 
+    private static final long OUTPUT_DRAIN_TIMEOUT_MILLIS = 30L * 1000L;
+
+    // Exists on any instance before the init script has run.
+    private static final String TMP_DIR = "/tmp";
+
+    public static final String COLD_LAUNCH_TIMER = "launch.cold";
+
+    public static final String REVIVED_LAUNCH_TIMER = "launch.revived";
+
     private final long pollIntervalMillis;
 
     private final long timeoutMillis;
 
-    private final CloudParameters cloudParams;
-
-    private final SlaveTemplate template;
+    private final SlaveReference reference;
 
     private final InstanceInfo info;
 
-    public StratusLabLauncher(CloudParameters cloudParams,
-            SlaveTemplate template, InstanceInfo info) {
+    // Resolved from the reference at the start of each launch.
+    private transient CloudParameters cloudParams;
+
+    private transient SlaveTemplate template;
+
+    // Revived instances were parked after a previous launch, so they are
+    // already running and have been initialized.
+    private final boolean revived;
+
+    private final long requestedMillis;
+
+    private boolean launchTimeRecorded;
+
+    // Set when the seed archive has been unpacked during this launch.
+    private transient volatile boolean seeded;
+
+    private transient volatile boolean seedCopied;
 
-        super(getDelegate(cloudParams, template, info));
-        this.cloudParams = cloudParams;
-        this.template = template;
+    public StratusLabLauncher(SlaveReference reference, InstanceInfo info,
+            boolean revived, long requestedMillis) {
+
+        super(getDelegate(reference.getCloudParameters(), reference
+                .getTemplate(), info));
+        this.reference = reference;
         this.info = info;
+        this.revived = revived;
+        this.requestedMillis = requestedMillis;
+
+        SlaveTemplate t = reference.getTemplate();
+        pollIntervalMillis = t.pollInterval * 1000;
+        timeoutMillis = t.timeout * 60 * 1000;
+    }
 
-        pollIntervalMillis = template.pollInterval * 1000;
-        timeoutMillis = template.timeout * 60 * 1000;
+    // Prepares a freshly started instance the same way as a cold launch,
+    // without connecting a slave to it; used when baking images.
+    void prepareInstance(TaskListener listener) throws IOException,
+            InterruptedException, StratusLabException {
+
+        resolveReference(listener);
+
+        try {
+            waitForRunningStatus(listener, pollIntervalMillis, timeoutMillis);
+            waitForSuccessfulSshConnection(listener, pollIntervalMillis,
+                    timeoutMillis);
+        } finally {
+            BootCallbacks.release(getCallbackKey());
+        }
+        stageFiles(listener);
+    }
+
+    private String getCallbackKey() {
+        return BootCallbacks.getKey(cloudParams, info);
+    }
+
+    private void resolveReference(TaskListener listener) throws IOException {
+        cloudParams = reference.getCloudParameters();
+        template = reference.getTemplate();
+        if (cloudParams == null || template == null) {
+            String msg = "cloud or template of " + reference
+                    + " no longer exists";
+            listener.fatalError(msg);
+            throw new IOException(msg);
+        }
     }
 
     @Override
     public void launch(SlaveComputer computer, TaskListener listener)
             throws IOException, InterruptedException {
 
-        try {
+        resolveReference(listener);
 
-            listener.getLogger().println("waiting for running state");
-            waitForRunningStatus(listener, pollIntervalMillis, timeoutMillis);
+        ProvisioningJournal journal = ProvisioningJournal.getInstance();
 
-            waitForSuccessfulSshConnection(listener, pollIntervalMillis,
-                    timeoutMillis);
+        try {
 
-            if (copyInitScript(listener)) {
-                runInitScript(listener);
+            if (!revived) {
+                listener.getLogger().println("waiting for running state");
+                waitForRunningStatus(listener, pollIntervalMillis,
+                        timeoutMillis);
+                journal.transition(computer.getName(), State.RUNNING);
+            } else {
+                listener.getLogger().println("reusing parked instance");
             }
 
-            copySlaveJar(listener);
+            try {
+                waitForSuccessfulSshConnection(listener, pollIntervalMillis,
+                        timeoutMillis);
+            } finally {
+                BootCallbacks.release(getCallbackKey());
+            }
+
+            if (!revived) {
+                stageFiles(listener);
+                if (computer.getNode() instanceof CloudSlave) {
+                    ((CloudSlave) computer.getNode()).setSeeded(seeded);
+                }
+            }
 
         } catch (StratusLabException e) {
             LOGGER.severe("launch failed for " + computer.getDisplayName());
@@ -95,6 +187,34 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
 
         super.launch(computer, listener);
 
+        if (computer.getChannel() != null) {
+            journal.transition(computer.getName(), State.ONLINE);
+        }
+
+        recordLaunchTime(listener);
+    }
+
+    // Only the first launch is interesting for comparing revivals and cold
+    // boots; later launches are reconnections of the same slave.
+    private synchronized void recordLaunchTime(TaskListener listener) {
+
+        if (!launchTimeRecorded) {
+            launchTimeRecorded = true;
+
+            long elapsed = System.currentTimeMillis() - requestedMillis;
+            String timer = revived ? REVIVED_LAUNCH_TIMER : COLD_LAUNCH_TIMER;
+            Metrics.recordTime(timer, elapsed);
+            if (info.imageId != null) {
+                Metrics.recordTime(timer + "." + info.imageId, elapsed);
+            }
+            if (!revived) {
+                RetentionModel.get(template).recordBoot(elapsed);
+            }
+
+            String fmt = "%s: slave launched %d s after it was requested";
+            listener.getLogger().println(
+                    String.format(fmt, info.toString(), elapsed / 1000L));
+        }
     }
 
     @Override
@@ -129,8 +249,13 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
                 msg = String.format(fmt, info.toString());
                 listener.getLogger().println(msg);
 
+                // Pings again right away if the instance calls back.
                 try {
-                    Thread.sleep(sleep);
+                    if (BootCallbacks.await(getCallbackKey(), sleep)) {
+                        fmt = "%s: instance reported that it has booted";
+                        msg = String.format(fmt, info.toString());
+                        listener.getLogger().println(msg);
+                    }
                 } catch (InterruptedException e) {
 
                 }
@@ -179,8 +304,14 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
                 listener.fatalError(msg);
                 throw new StratusLabException(msg);
             } else {
+                // An instance that calls back is running.
                 try {
-                    Thread.sleep(sleep);
+                    if (BootCallbacks.await(getCallbackKey(), sleep)) {
+                        fmt = "%s: instance reported that it has booted";
+                        msg = String.format(fmt, info.toString());
+                        listener.getLogger().println(msg);
+                        break;
+                    }
                 } catch (InterruptedException consumed) {
 
                 }
@@ -201,19 +332,122 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
 
     }
 
-    private void copySlaveJar(TaskListener listener) throws StratusLabException {
+    // The init script, slave.jar and the staged files don't depend on each
+    // other, so they are transferred concurrently over separate channels of
+    // one connection. The init script may create, chown or clean the remote
+    // FS, so slave.jar and the seed archive are first copied outside of it
+    // and only put in place once the script has run.
+    private void stageFiles(TaskListener listener)
+            throws StratusLabException, InterruptedException {
 
-        String fmt = "copying slave.jar to %s on instance";
-        listener.getLogger().println(String.format(fmt, template.remoteFS));
+        LaunchStepGraph graph = new LaunchStepGraph();
+
+        LaunchStep run = null;
+
+        if (BakedImages.isBakedImage(template, info.imageId)) {
+            listener.getLogger().println(
+                    "init script already run in baked image " + info.imageId);
+        } else if (hasInitScript(listener)) {
+
+            LaunchStep copy = new LaunchStep("copy-init-script") {
+                public void execute(Connection connection,
+                        TaskListener listener) throws StratusLabException {
+                    copyInitScript(connection, listener);
+                }
+            };
+
+            run = new LaunchStep("run-init-script", copy) {
+                public void execute(Connection connection,
+                        TaskListener listener) throws StratusLabException {
+                    runInitScript(connection, listener);
+                }
+            };
+
+            graph.add(copy).add(run);
+        }
+
+        List<File> staged = template.getStagedFiles();
+        if (!staged.isEmpty()) {
+            final FileStager stager = new FileStager(staged, template
+                    .getStagingDirectory(), timeoutMillis);
+            graph.add(new LaunchStep("stage-files") {
+                public void execute(Connection connection,
+                        TaskListener listener) throws StratusLabException {
+                    stager.stage(connection, listener);
+                }
+            });
+        }
+
+        final File seed = template.isSeedingEnabled() ? SeedArchives
+                .getArchive(template) : null;
+        if (seed != null && seed.isFile() && run == null) {
+            graph.add(new LaunchStep("unpack-seed") {
+                public void execute(Connection connection,
+                        TaskListener listener) {
+                    seeded = unpackSeed(connection, listener, seed);
+                }
+            });
+        } else if (seed != null && seed.isFile()) {
+            final String tmpSeed = TMP_DIR + "/stratuslab-seed-" + info.vmid
+                    + ".tar.gz";
+
+            LaunchStep copySeed = new LaunchStep("copy-seed") {
+                public void execute(Connection connection,
+                        TaskListener listener) {
+                    seedCopied = copySeed(connection, listener, seed, tmpSeed);
+                }
+            };
+
+            LaunchStep unpackSeed = new LaunchStep("unpack-seed", copySeed,
+                    run) {
+                public void execute(Connection connection,
+                        TaskListener listener) {
+                    seeded = seedCopied
+                            && unpackCopiedSeed(connection, listener, tmpSeed);
+                }
+            };
+
+            graph.add(copySeed).add(unpackSeed);
+        }
+
+        if (run == null) {
+            graph.add(new LaunchStep("copy-slave-jar") {
+                public void execute(Connection connection,
+                        TaskListener listener) throws StratusLabException {
+                    copySlaveJar(connection, listener, template.remoteFS,
+                            "slave.jar");
+                }
+            });
+        } else {
+            final String tmpJar = "stratuslab-slave-" + info.vmid + ".jar";
+
+            LaunchStep copyJar = new LaunchStep("copy-slave-jar") {
+                public void execute(Connection connection,
+                        TaskListener listener) throws StratusLabException {
+                    copySlaveJar(connection, listener, TMP_DIR, tmpJar);
+                }
+            };
+
+            LaunchStep placeJar = new LaunchStep("place-slave-jar", copyJar,
+                    run) {
+                public void execute(Connection connection,
+                        TaskListener listener) throws StratusLabException {
+                    String dir = FileStager.quote(template.remoteFS);
+                    String cmd = String.format("mkdir -p %s && mv %s %s",
+                            dir, FileStager.quote(TMP_DIR + "/" + tmpJar),
+                            FileStager.quote(template.remoteFS + "/slave.jar"));
+                    runCommand(connection, listener, cmd);
+                }
+            };
+
+            graph.add(copyJar).add(placeJar);
+        }
 
         Connection connection = null;
         try {
 
             connection = openSshConnection();
-
-            SCPClient scp = connection.createSCPClient();
-            scp.put(Hudson.getInstance().getJnlpJars("slave.jar").readFully(),
-                    "slave.jar", template.remoteFS);
+            graph.run(connection, listener, LaunchExecutors.steps());
 
         } catch (IOException e) {
             e.printStackTrace(listener.getLogger());
@@ -224,12 +458,174 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
                 connection.close();
             }
         }
+    }
+
+    private void copySlaveJar(Connection connection, TaskListener listener,
+            String dir, String name) throws StratusLabException {
+
+        String fmt = "copying slave.jar to %s on instance";
+        listener.getLogger().println(String.format(fmt, dir));
+
+        try {
+
+            // The shared contents are only read by the SCP client.
+            byte[] jar = SlaveJarCache.getContents(Hudson.getInstance()
+                    .getJnlpJars("slave.jar").getURL());
+
+            SCPClient scp = connection.createSCPClient();
+            scp.put(jar, name, dir);
+
+        } catch (IOException e) {
+            e.printStackTrace(listener.getLogger());
+            listener.fatalError(e.getMessage());
+            throw new StratusLabException(e);
+        }
 
         listener.getLogger().println("copied slave.jar to instance");
     }
 
-    private boolean copyInitScript(TaskListener listener)
-            throws StratusLabException {
+    // The seed only saves time; failing to unpack it doesn't fail the
+    // launch.
+    private boolean unpackSeed(Connection connection, TaskListener listener,
+            File seed) {
+
+        String fmt = "unpacking seed archive (%d bytes) into %s";
+        listener.getLogger().println(
+                String.format(fmt, seed.length(), template.remoteFS));
+
+        String dir = FileStager.quote(template.remoteFS);
+        String cmd = "mkdir -p " + dir + " && tar -xzf - -C " + dir;
+        if (!sendSeed(connection, listener, seed, cmd)) {
+            return false;
+        }
+
+        listener.getLogger().println("unpacked seed archive");
+        return true;
+    }
+
+    // With an init script, the archive is copied outside of the remote FS
+    // while the script runs and unpacked once it has finished.
+    private boolean copySeed(Connection connection, TaskListener listener,
+            File seed, String tmpSeed) {
+
+        String fmt = "copying seed archive (%d bytes) to %s";
+        listener.getLogger().println(
+                String.format(fmt, seed.length(), tmpSeed));
+
+        return sendSeed(connection, listener, seed, "cat > "
+                + FileStager.quote(tmpSeed));
+    }
+
+    private boolean unpackCopiedSeed(Connection connection,
+            TaskListener listener, String tmpSeed) {
+
+        String fmt = "unpacking seed archive into %s";
+        listener.getLogger().println(String.format(fmt, template.remoteFS));
+
+        String dir = FileStager.quote(template.remoteFS);
+        String tmp = FileStager.quote(tmpSeed);
+        String cmd = String.format("mkdir -p %s && tar -xzf %s -C %s; "
+                + "rc=$?; rm -f %s; exit $rc", dir, tmp, dir, tmp);
+
+        try {
+            Integer rc = execCommand(connection, cmd);
+            if (rc == null || rc.intValue() != 0) {
+                listener.error("cannot unpack seed archive; rc is " + rc);
+                return false;
+            }
+        } catch (IOException e) {
+            listener.error("cannot unpack seed archive: " + e.getMessage());
+            return false;
+        }
+
+        listener.getLogger().println("unpacked seed archive");
+        return true;
+    }
+
+    // Feeds the archive to the command.
+    private boolean sendSeed(Connection connection, TaskListener listener,
+            File seed, String cmd) {
+
+        Session session = null;
+        InputStream is = null;
+        try {
+
+            session = connection.openSession();
+            session.execCommand(cmd);
+
+            OutputStream stdin = session.getStdin();
+            try {
+                is = new FileInputStream(seed);
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = is.read(buffer)) != -1) {
+                    stdin.write(buffer, 0, n);
+                }
+            } finally {
+                ProcessUtils.closeReliably(stdin);
+            }
+
+            session.waitForCondition(ChannelCondition.EXIT_STATUS,
+                    timeoutMillis);
+            Integer rc = session.getExitStatus();
+            if (rc == null || rc.intValue() != 0) {
+                listener.error("cannot send seed archive; rc is " + rc);
+                return false;
+            }
+
+        } catch (IOException e) {
+            listener.error("cannot send seed archive: " + e.getMessage());
+            return false;
+        } finally {
+            ProcessUtils.closeReliably(is);
+            if (session != null) {
+                session.close();
+            }
+        }
+
+        return true;
+    }
+
+    private void runCommand(Connection connection, TaskListener listener,
+            String cmd) throws StratusLabException {
+
+        try {
+            Integer rc = execCommand(connection, cmd);
+            if (rc == null || rc.intValue() != 0) {
+                String fmt = "error running %s on instance; rc is %s";
+                String msg = String.format(fmt, cmd, rc);
+                listener.fatalError(msg);
+                throw new StratusLabException(msg);
+            }
+        } catch (IOException e) {
+            e.printStackTrace(listener.getLogger());
+            listener.fatalError(e.getMessage());
+            throw new StratusLabException(e);
+        }
+    }
+
+    // Returns the exit status of a command without input, or null if it
+    // did not finish in time.
+    private Integer execCommand(Connection connection, String cmd)
+            throws IOException {
+
+        Session session = connection.openSession();
+        try {
+            session.execCommand(cmd);
+            ProcessUtils.closeReliably(session.getStdin());
+
+            int conditions = session.waitForCondition(
+                    ChannelCondition.EXIT_STATUS, timeoutMillis);
+            if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                return null;
+            }
+            return session.getExitStatus();
+        } finally {
+            session.close();
+        }
+    }
+
+    private boolean hasInitScript(TaskListener listener) {
 
         if (isEmptyStringOrNull(template.initScriptDir)
                 || isEmptyStringOrNull(template.initScriptName)
@@ -239,16 +635,19 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
             return false;
         }
 
+        return true;
+    }
+
+    private void copyInitScript(Connection connection, TaskListener listener)
+            throws StratusLabException {
+
         String fmt = "copying init script to %s with name %s";
         String msg = String.format(fmt, template.initScriptDir,
                 template.initScriptName);
         listener.getLogger().println(msg);
 
-        Connection connection = null;
         try {
 
-            connection = openSshConnection();
-
             // Assumes that client will understand UTF-8. This should
             // probably be added as a parameter in the configuration.
             SCPClient scp = connection.createSCPClient();
@@ -259,40 +658,57 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
             e.printStackTrace(listener.getLogger());
             listener.fatalError(e.getMessage());
             throw new StratusLabException(e);
-        } finally {
-            if (connection != null) {
-                connection.close();
-            }
         }
 
         listener.getLogger().println("copied init script");
-
-        return true;
     }
 
-    private void runInitScript(TaskListener listener)
+    private void runInitScript(Connection connection, TaskListener listener)
             throws StratusLabException {
 
         listener.getLogger().println("running init script");
 
-        Connection connection = null;
-        try {
+        String script = template.initScriptDir + template.initScriptName;
+        long timeout = template.initScriptTimeout * 60L * 1000L;
 
-            connection = openSshConnection();
+        Session session = null;
+        try {
 
-            Session session = connection.openSession();
+            session = connection.openSession();
             session.requestDumbPTY();
-            session.execCommand(template.initScriptDir
-                    + template.initScriptName);
+            session.execCommand(script);
+
+            // Both streams are drained concurrently; reading one of them
+            // to the end before the other can block the script once the
+            // channel window of the other one is full.
+            OutputLimit limit = new OutputLimit(
+                    template.initScriptOutputLimit * 1024L);
+            Future<?> stdout = LaunchExecutors.forwarders()
+                    .submit(new OutputForwarder(session.getStdout(), listener
+                            .getLogger(), "", UTF8, limit));
+            Future<?> stderr = LaunchExecutors.forwarders()
+                    .submit(new OutputForwarder(session.getStderr(), listener
+                            .getLogger(), "stderr: ", UTF8, limit));
+
+            int conditions = session.waitForCondition(
+                    ChannelCondition.EXIT_STATUS | ChannelCondition.EXIT_SIGNAL
+                            | ChannelCondition.CLOSED, timeout);
+
+            if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                String fmt = "%s did not finish within %d minute(s)";
+                String msg = String.format(fmt, script,
+                        template.initScriptTimeout);
+                listener.fatalError(msg);
+                throw new StratusLabException(msg);
+            }
 
-            IOUtils.copy(session.getStdout(), listener.getLogger());
-            IOUtils.copy(session.getStderr(), listener.getLogger());
+            waitForOutput(stdout, listener);
+            waitForOutput(stderr, listener);
 
-            int rc = session.getExitStatus();
-            if (rc != 0) {
-                String fmt = "error running %s%s on instance; rc is %d";
-                listener.error(String.format(fmt, template.initScriptDir,
-                        template.initScriptName, rc));
+            Integer rc = session.getExitStatus();
+            if (rc == null || rc.intValue() != 0) {
+                String fmt = "error running %s on instance; rc is %s";
+                listener.error(String.format(fmt, script, rc));
             }
 
         } catch (IOException e) {
@@ -300,8 +716,8 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
             listener.fatalError(e.getMessage());
             throw new StratusLabException(e);
         } finally {
-            if (connection != null) {
-                connection.close();
+            if (session != null) {
+                session.close();
             }
         }
 
@@ -309,6 +725,24 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
 
     }
 
+    // The remaining output arrives right after the exit status; don't wait
+    // forever for it though.
+    private static void waitForOutput(Future<?> forwarder,
+            TaskListener listener) {
+
+        try {
+            forwarder.get(OUTPUT_DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            listener.getLogger().println("timeout waiting for script output");
+            forwarder.cancel(true);
+        } catch (ExecutionException e) {
+            listener.getLogger().println(e.getMessage());
+        } catch (InterruptedException e) {
+            forwarder.cancel(true);
+            Thread.currentThread().interrupt();
+        }
+    }
+
     private void pingInstanceViaSsh() throws IOException {
 
         Connection connection = null;
@@ -334,9 +768,9 @@ public class StratusLabLauncher extends DelegatingComputerLauncher {
         Connection connection = new Connection(info.ip, template.sshPort);
         connection.connect();
 
-        connection.authenticateWithPublicKey(template.remoteUser,
-                cloudParams.getSshPrivateKeyData(),
-                cloudParams.sshPrivateKeyPassword);
+        SshKey key = cloudParams.getSshKey();
+        connection.authenticateWithPublicKey(template.remoteUser, key.pem,
+                key.password);
 
         return connection;
     }
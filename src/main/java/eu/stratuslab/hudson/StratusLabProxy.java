@@ -19,6 +19,7 @@
  */
 package eu.stratuslab.hudson;
 
+import static eu.stratuslab.hudson.utils.CloudParameterUtils.VALIDATION_TIMEOUT_MILLIS;
 import static eu.stratuslab.hudson.utils.ProcessUtils.runCommand;
 import static eu.stratuslab.hudson.utils.ProcessUtils.runCommandWithResults;
 
@@ -26,21 +27,50 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import eu.stratuslab.hudson.utils.ProcessUtils;
 import eu.stratuslab.hudson.utils.ProcessUtils.ProcessResult;
+import eu.stratuslab.hudson.utils.RateLimiter;
 
 /*
  * This class handles the interactions between Hudson and a StratusLab cloud infrastructure.
  */
 public class StratusLabProxy {
 
+    // All machines started by the plugin have names starting with this
+    // prefix so that orphaned instances can be recognized later.
+    public static final String VM_NAME_PREFIX = "hudson-";
+
+    private static final Pattern MARKETPLACE_ID_PATTERN = Pattern
+            .compile("(?<![A-Za-z0-9_-])([A-Za-z0-9_-]{27})(?![A-Za-z0-9_-])");
+
+    // Errors of the client that mean the endpoint could not be reached or
+    // failed on its side, as opposed to errors in the request itself.
+    private static final Pattern TRANSPORT_ERROR_PATTERN = Pattern
+            .compile("(?i)connection refused|connection reset|timed out"
+                    + "|no route to host|network is unreachable"
+                    + "|name or service not known"
+                    + "|temporary failure in name resolution|urlopen error"
+                    + "|http error 5\\d\\d"
+                    + "|\\b5\\d\\d (internal server error|bad gateway"
+                    + "|service unavailable|gateway time-?out)");
+
+    public static final int DEFAULT_MUTATING_CALLS_PER_MINUTE = 30;
+
+    public static final int DEFAULT_READ_CALLS_PER_MINUTE = 120;
+
     public static void testConnection(CloudParameters params)
             throws StratusLabException {
 
-        runCommand(params.clientLocation, "stratus-describe-instance",
-                "--endpoint", params.endpoint, "--username", params.username,
-                "--password", params.password);
+        runCommand(params.clientLocation, VALIDATION_TIMEOUT_MILLIS,
+                "stratus-describe-instance", "--endpoint", params.endpoint,
+                "--username", params.username, "--password", params.password);
     }
 
     public static void testInstallation(CloudParameters params)
@@ -50,25 +80,71 @@ public class StratusLabProxy {
     }
 
     public static InstanceInfo startInstance(CloudParameters params,
-            String marketplaceId, SlaveTemplate.InstanceTypes instanceType)
+            String marketplaceId, SlaveTemplate.InstanceTypes instanceType,
+            String vmName) throws StratusLabException {
+        return startInstance(params, marketplaceId, instanceType, vmName,
+                false);
+    }
+
+    // With save, a new image is created from the disk of the instance when
+    // it is shut down.
+    public static InstanceInfo startInstance(CloudParameters params,
+            String marketplaceId, SlaveTemplate.InstanceTypes instanceType,
+            String vmName, boolean save) throws StratusLabException {
+        return startInstance(params, marketplaceId, instanceType, vmName,
+                save, null);
+    }
+
+    // The boot URL, if any, is passed to the instance in its context.
+    public static InstanceInfo startInstance(CloudParameters params,
+            String marketplaceId, SlaveTemplate.InstanceTypes instanceType,
+            String vmName, boolean save, String bootUrl)
             throws StratusLabException {
 
-        ProcessResult results = runCommandWithResults(params.clientLocation,
-                "stratus-run-instance", "--endpoint", params.endpoint,
-                "--username", params.username, "--password", params.password,
-                "--key", params.sshPublicKey, "--type", instanceType.tag(),
-                "--quiet", marketplaceId);
+        List<String> options = new ArrayList<String>(Arrays.asList(
+                "--endpoint", params.endpoint, "--username", params.username,
+                "--password", params.password, "--key", params.sshPublicKey,
+                "--type", instanceType.tag(), "--vm-name", getVmName(vmName),
+                "--quiet"));
+        if (save) {
+            options.add("--save");
+        }
+        if (bootUrl != null) {
+            options.add("--context");
+            options.add(BootCallbacks.CONTEXT_VARIABLE + "=" + bootUrl);
+        }
+        options.add(marketplaceId);
+
+        ProcessResult results = runGuardedCommand(params, true,
+                "stratus-run-instance", options.toArray(new String[options
+                        .size()]));
         if (results.rc != 0) {
             throw new StratusLabException(results.error);
         }
-        return parseForVmidAndIpAddress(results.output);
+        InstanceInfo info = parseForVmidAndIpAddress(results.output);
+        return new InstanceInfo(info.vmid, info.ip, marketplaceId);
 
     }
 
+    // Returns the identifier of the new image if the instance was started
+    // with save and the client reports it, null otherwise.
+    public static String shutdownInstance(CloudParameters params, String vmid)
+            throws StratusLabException {
+
+        ProcessResult results = runGuardedCommand(params, true,
+                "stratus-shutdown-instance", "--endpoint", params.endpoint,
+                "--username", params.username, "--password", params.password,
+                vmid);
+        if (results.rc != 0) {
+            throw new StratusLabException(results.error);
+        }
+        return parseForMarketplaceId(results.output);
+    }
+
     public static String getInstanceStatus(CloudParameters params, String vmid)
             throws StratusLabException {
 
-        ProcessResult results = runCommandWithResults(params.clientLocation,
+        ProcessResult results = runGuardedCommand(params, false,
                 "stratus-describe-instance", "--endpoint", params.endpoint,
                 "--username", params.username, "--password", params.password,
                 vmid);
@@ -82,7 +158,7 @@ public class StratusLabProxy {
     public static void killInstance(CloudParameters params, String vmid)
             throws StratusLabException {
 
-        ProcessResult results = runCommandWithResults(params.clientLocation,
+        ProcessResult results = runGuardedCommand(params, true,
                 "stratus-kill-instance", "--endpoint", params.endpoint,
                 "--username", params.username, "--password", params.password,
                 vmid);
@@ -92,13 +168,25 @@ public class StratusLabProxy {
 
     }
 
+    public static List<InstanceStatus> describeInstances(
+            CloudParameters params) throws StratusLabException {
+
+        ProcessResult results = runGuardedCommand(params, false,
+                "stratus-describe-instance", "--endpoint", params.endpoint,
+                "--username", params.username, "--password", params.password);
+        if (results.rc != 0) {
+            throw new StratusLabException(results.error);
+        }
+        return parseForInstanceList(results.output);
+    }
+
     public static int getNumberOfDefinedInstances(CloudParameters params) {
 
         int definedInstances = Integer.MAX_VALUE;
 
         try {
-            ProcessResult results = runCommandWithResults(
-                    params.clientLocation, "stratus-describe-instance",
+            ProcessResult results = runGuardedCommand(params, false,
+                    "stratus-describe-instance",
                     "--endpoint", params.endpoint, "--username",
                     params.username, "--password", params.password);
 
@@ -113,6 +201,71 @@ public class StratusLabProxy {
         return definedInstances;
     }
 
+    // Mutating calls (run, kill) and read calls (describe) have separate
+    // budgets so that polling cannot delay the start of new instances.
+    public static RateLimiter getRateLimiter(CloudParameters params,
+            boolean mutating) {
+
+        if (mutating) {
+            return RateLimiter.get(params.endpoint + ".mutating",
+                    DEFAULT_MUTATING_CALLS_PER_MINUTE);
+        } else {
+            return RateLimiter.get(params.endpoint + ".read",
+                    DEFAULT_READ_CALLS_PER_MINUTE);
+        }
+    }
+
+    // Fails fast while the circuit of the endpoint is open; otherwise waits
+    // for the rate limiter. Only transport errors count as failures of the
+    // endpoint: errors in the request (killing an instance that is already
+    // gone, an unknown image) say nothing about its health. A client that
+    // cannot be run at all still counts as a failure, but a command that
+    // the master had no room to run is not counted at all.
+    private static ProcessResult runGuardedCommand(CloudParameters params,
+            boolean mutating, String cmd, String... options)
+            throws StratusLabException {
+
+        CircuitBreaker breaker = CircuitBreaker.get(params);
+        breaker.acquire();
+
+        boolean counted = false;
+        boolean success = false;
+        try {
+            try {
+                getRateLimiter(params, mutating).acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new StratusLabException(
+                        "interrupted while waiting for the rate limit of "
+                                + params.endpoint);
+            }
+            counted = true;
+            ProcessResult results = runCommandWithResults(
+                    params.clientLocation, cmd, options);
+            counted = (results.rc != ProcessUtils.REJECTED_RC);
+            success = !isTransportFailure(results.rc, results.error);
+            return results;
+        } finally {
+            if (!counted) {
+                breaker.release();
+            } else if (success) {
+                breaker.recordSuccess();
+            } else {
+                breaker.recordFailure();
+            }
+        }
+    }
+
+    // Timeouts have a return code of -1.
+    static boolean isTransportFailure(int rc, String error) {
+        if (rc == 0) {
+            return false;
+        }
+        return rc == -1
+                || (error != null && TRANSPORT_ERROR_PATTERN.matcher(error)
+                        .find());
+    }
+
     public static InstanceInfo parseForVmidAndIpAddress(String output)
             throws StratusLabException {
         String[] fields = output.split("\\s*,\\s*");
@@ -133,6 +286,11 @@ public class StratusLabProxy {
         return new InstanceInfo(vmid, ip);
     }
 
+    public static String parseForMarketplaceId(String output) {
+        Matcher matcher = MARKETPLACE_ID_PATTERN.matcher(output);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
     public static String parseForVmStatus(String output, String vmid)
             throws StratusLabException {
 
@@ -161,15 +319,85 @@ public class StratusLabProxy {
         return "unknown";
     }
 
+    public static List<InstanceStatus> parseForInstanceList(String output) {
+
+        List<InstanceStatus> instances = new ArrayList<InstanceStatus>();
+
+        BufferedReader reader = new BufferedReader(new StringReader(output));
+
+        try {
+
+            // The header line and any other unexpected lines are skipped
+            // because the first field is not a VM identifier.
+            String s;
+            while ((s = reader.readLine()) != null) {
+                String[] fields = s.trim().split("\\s+");
+                if (fields.length > 2) {
+                    try {
+                        int vmid = Integer.parseInt(fields[0]);
+                        String name = fields[fields.length - 1];
+                        instances.add(new InstanceStatus(vmid, fields[1], name));
+                    } catch (IllegalArgumentException consumed) {
+                    }
+                }
+            }
+
+        } catch (IOException consumed) {
+
+        } finally {
+            ProcessUtils.closeReliably(reader);
+        }
+
+        return Collections.unmodifiableList(instances);
+    }
+
+    public static String getVmName(String nodeName) {
+        return VM_NAME_PREFIX + nodeName.replaceAll("[^\\w\\.\\-]", "_");
+    }
+
+    public static boolean isPluginInstance(InstanceStatus status) {
+        return status.name.startsWith(VM_NAME_PREFIX);
+    }
+
+    public static class InstanceStatus {
+
+        public final int vmid;
+        public final String state;
+        public final String name;
+
+        public InstanceStatus(int vmid, String state, String name) {
+            this.vmid = vmid;
+            this.state = state;
+            this.name = name;
+        }
+
+        public boolean isTerminated() {
+            return "Done".equalsIgnoreCase(state)
+                    || "Failed".equalsIgnoreCase(state);
+        }
+
+        public String toString() {
+            return String.format("%d, %s, %s", vmid, state, name);
+        }
+    }
+
     @SuppressWarnings("serial")
     public static class InstanceInfo implements Serializable {
 
         public final int vmid;
         public final String ip;
 
+        // Image the instance was started from; null if not known.
+        public final String imageId;
+
         public InstanceInfo(int vmid, String ip) {
+            this(vmid, ip, null);
+        }
+
+        public InstanceInfo(int vmid, String ip, String imageId) {
             this.vmid = vmid;
             this.ip = ip;
+            this.imageId = imageId;
         }
 
         public String toString() {
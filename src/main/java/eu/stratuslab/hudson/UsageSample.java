@@ -0,0 +1,45 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import java.io.Serializable;
+
+/*
+ * Peak use of a slave during one build: the number of processors kept busy
+ * and the memory in use, swap included.
+ */
+@SuppressWarnings("serial")
+public class UsageSample implements Serializable {
+
+    public final double cpu;
+
+    public final long memoryMB;
+
+    public UsageSample(double cpu, long memoryMB) {
+        this.cpu = cpu;
+        this.memoryMB = memoryMB;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("cpu=%.2f, memory=%dMB", cpu, memoryMB);
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.remoting.Callable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Measures the peak processor and memory use of a slave while builds run
+ * on it. Sampling runs on the slave itself, in a daemon thread that exits
+ * once no build is measured, so that short peaks are not missed between
+ * calls over the channel. The usage of the machine is split evenly
+ * between the builds running on it at the time of each sample, so the
+ * peaks estimate the footprint of one build. Only Linux is supported;
+ * elsewhere the peaks stay at zero.
+ */
+public final class UsageSampler {
+
+    public static final long INTERVAL_MILLIS = 5L * 1000L;
+
+    private static final File PROC_STAT = new File("/proc/stat");
+
+    private static final File PROC_MEMINFO = new File("/proc/meminfo");
+
+    // Peak processors and memory for each build being measured.
+    private static final Map<String, double[]> PEAKS = new HashMap<String, double[]>();
+
+    private static Thread sampler;
+
+    private UsageSampler() {
+    }
+
+    static synchronized void start(String key) {
+        PEAKS.put(key, new double[2]);
+        if (sampler == null) {
+            sampler = new Thread(new Sampler(), "stratuslab-usage-sampler");
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+    }
+
+    static synchronized UsageSample stop(String key) {
+        double[] peaks = PEAKS.remove(key);
+        if (peaks == null) {
+            return null;
+        }
+        return new UsageSample(peaks[0], (long) peaks[1]);
+    }
+
+    static synchronized boolean record(double cpu, long memoryMB) {
+        if (PEAKS.isEmpty()) {
+            sampler = null;
+            return false;
+        }
+        int builds = PEAKS.size();
+        for (double[] peaks : PEAKS.values()) {
+            peaks[0] = Math.max(peaks[0], cpu / builds);
+            peaks[1] = Math.max(peaks[1], memoryMB / (double) builds);
+        }
+        return true;
+    }
+
+    // Busy and total jiffies from the first line of /proc/stat, or null.
+    static long[] parseCpuTimes(String line) {
+        if (line == null || !line.startsWith("cpu ")) {
+            return null;
+        }
+        String[] fields = line.trim().split("\\s+");
+        long total = 0L;
+        long idle = 0L;
+        try {
+            for (int i = 1; i < fields.length; i++) {
+                long value = Long.parseLong(fields[i]);
+                total += value;
+                // Idle and I/O wait.
+                if (i == 4 || i == 5) {
+                    idle += value;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new long[] { total - idle, total };
+    }
+
+    private static long[] readCpuTimes() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(PROC_STAT), Charset.forName("UTF-8")));
+            return parseCpuTimes(reader.readLine());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException consumed) {
+                }
+            }
+        }
+    }
+
+    private static class Sampler implements Runnable {
+
+        public void run() {
+
+            int processors = Runtime.getRuntime().availableProcessors();
+            long[] previous = readCpuTimes();
+
+            boolean running = true;
+            while (running) {
+
+                try {
+                    Thread.sleep(INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                double cpu = 0.0;
+                long[] current = readCpuTimes();
+                if (previous != null && current != null
+                        && current[1] > previous[1]) {
+                    cpu = processors * (current[0] - previous[0])
+                            / (double) (current[1] - previous[1]);
+                }
+                previous = current;
+
+                long memory = 0L;
+                long[] info = HealthProbe.readMemoryInfo(PROC_MEMINFO);
+                if (info[0] >= 0L && info[2] >= 0L) {
+                    memory = info[2] - info[0] + Math.max(info[1], 0L);
+                }
+
+                running = record(cpu, memory);
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    public static class Start implements Callable<Void, IOException> {
+
+        private final String key;
+
+        public Start(String key) {
+            this.key = key;
+        }
+
+        public Void call() {
+            start(key);
+            return null;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    public static class Stop implements Callable<UsageSample, IOException> {
+
+        private final String key;
+
+        public Stop(String key) {
+            this.key = key;
+        }
+
+        public UsageSample call() {
+            return stop(key);
+        }
+    }
+
+}
@@ -0,0 +1,289 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import hudson.model.Hudson;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.SlaveTemplate.InstanceTypes;
+
+/*
+ * Time series of the peak usage of the builds run on the slaves of one
+ * template, kept in the Hudson root directory as small binary records
+ * (time, job, processors, memory) appended after each build. Only the
+ * recent builds are kept; the file is rewritten when it holds twice as
+ * many records as needed.
+ *
+ * The footprint of a build is the 95th percentile of the peaks. The
+ * recommended instance type is the smallest one that can hold the given
+ * number of such builds, with some headroom for memory.
+ */
+public class UsageStore {
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    public static final String DIRECTORY = "stratuslab-usage";
+
+    public static final int MAX_RECORDS = 1000;
+
+    public static final long MAX_AGE_MILLIS = 30L * 24L * 60L * 60L * 1000L;
+
+    public static final int MIN_RECORDS = 5;
+
+    public static final double PERCENTILE = 0.95;
+
+    public static final double MEMORY_HEADROOM = 1.25;
+
+    private static final ConcurrentMap<String, UsageStore> STORES = new ConcurrentHashMap<String, UsageStore>();
+
+    private final File file;
+
+    private final LinkedList<Record> records = new LinkedList<Record>();
+
+    private int stored;
+
+    public UsageStore(File file) {
+        this.file = file;
+        load();
+    }
+
+    public static UsageStore get(SlaveTemplate template) {
+        String key = template.getId();
+        UsageStore store = STORES.get(key);
+        if (store == null) {
+            File dir = new File(Hudson.getInstance().getRootDir(), DIRECTORY);
+            UsageStore newStore = new UsageStore(new File(dir, key + ".dat"));
+            store = STORES.putIfAbsent(key, newStore);
+            if (store == null) {
+                store = newStore;
+            }
+        }
+        return store;
+    }
+
+    public synchronized void record(String job, UsageSample sample) {
+        record(new Record(System.currentTimeMillis(), job, sample.cpu,
+                sample.memoryMB));
+    }
+
+    synchronized void record(Record record) {
+
+        records.add(record);
+        trim(record.time);
+
+        try {
+            if (stored >= 2 * MAX_RECORDS) {
+                rewrite();
+            } else {
+                write(Arrays.asList(record), true);
+                stored++;
+            }
+        } catch (IOException e) {
+            LOGGER.warning("cannot write " + file + ": " + e.getMessage());
+        }
+    }
+
+    public synchronized List<Record> getRecords() {
+        return new ArrayList<Record>(records);
+    }
+
+    public synchronized int size() {
+        return records.size();
+    }
+
+    // Null until enough builds have been measured.
+    public synchronized UsageSample getFootprint() {
+        if (records.size() < MIN_RECORDS) {
+            return null;
+        }
+        double[] cpu = new double[records.size()];
+        double[] memory = new double[records.size()];
+        int i = 0;
+        for (Record record : records) {
+            cpu[i] = record.cpu;
+            memory[i] = record.memoryMB;
+            i++;
+        }
+        return new UsageSample(percentile(cpu), (long) Math
+                .ceil(percentile(memory)));
+    }
+
+    // Null until enough builds have been measured.
+    public InstanceTypes recommend(int builds) {
+        UsageSample footprint = getFootprint();
+        if (footprint == null) {
+            return null;
+        }
+        return InstanceTypes.smallestFitting(footprint.cpu * builds,
+                (long) Math.ceil(footprint.memoryMB * MEMORY_HEADROOM
+                        * builds));
+    }
+
+    // The highest peaks of each job, by job name.
+    public synchronized Map<String, UsageSample> getJobPeaks() {
+        Map<String, UsageSample> peaks = new TreeMap<String, UsageSample>();
+        for (Record record : records) {
+            UsageSample peak = peaks.get(record.job);
+            if (peak == null) {
+                peaks.put(record.job, new UsageSample(record.cpu,
+                        record.memoryMB));
+            } else {
+                peaks.put(record.job, new UsageSample(Math.max(peak.cpu,
+                        record.cpu), Math.max(peak.memoryMB, record.memoryMB)));
+            }
+        }
+        return peaks;
+    }
+
+    static double percentile(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(PERCENTILE * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private void trim(long now) {
+        while (records.size() > MAX_RECORDS
+                || (!records.isEmpty() && now - records.getFirst().time
+                        > MAX_AGE_MILLIS)) {
+            records.removeFirst();
+        }
+    }
+
+    private void load() {
+
+        if (!file.isFile()) {
+            return;
+        }
+
+        boolean torn = false;
+        DataInputStream is = null;
+        try {
+            is = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            while (true) {
+                is.mark(1);
+                if (is.read() < 0) {
+                    break;
+                }
+                is.reset();
+                records.add(new Record(is.readLong(), is.readUTF(), is
+                        .readFloat(), is.readInt()));
+                stored++;
+            }
+        } catch (EOFException e) {
+            torn = true;
+        } catch (IOException e) {
+            LOGGER.warning("cannot read " + file + ": " + e.getMessage());
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException consumed) {
+                }
+            }
+        }
+
+        trim(System.currentTimeMillis());
+
+        // A record cut short by a crash is dropped; records appended after
+        // it would be misread, so the file is rewritten without it.
+        if (torn) {
+            LOGGER.warning("dropping partial record at the end of " + file);
+            try {
+                rewrite();
+            } catch (IOException e) {
+                LOGGER.warning("cannot rewrite " + file + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    private void rewrite() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        writeTo(tmp, records, false);
+        if (!tmp.renameTo(file)) {
+            throw new IOException("cannot rename " + tmp + " to " + file);
+        }
+        stored = records.size();
+    }
+
+    private void write(List<Record> batch, boolean append) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        writeTo(file, batch, append);
+    }
+
+    private static void writeTo(File file, List<Record> batch, boolean append)
+            throws IOException {
+        DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file, append)));
+        try {
+            for (Record record : batch) {
+                os.writeLong(record.time);
+                os.writeUTF(record.job);
+                os.writeFloat((float) record.cpu);
+                os.writeInt((int) record.memoryMB);
+            }
+        } finally {
+            os.close();
+        }
+    }
+
+    public static class Record {
+
+        public final long time;
+
+        public final String job;
+
+        public final double cpu;
+
+        public final long memoryMB;
+
+        public Record(long time, String job, double cpu, long memoryMB) {
+            this.time = time;
+            this.job = job;
+            this.cpu = cpu;
+            this.memoryMB = memoryMB;
+        }
+    }
+
+}
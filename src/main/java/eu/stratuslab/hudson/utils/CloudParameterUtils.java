@@ -25,6 +25,7 @@ import hudson.util.FormValidation;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -42,6 +43,9 @@ public final class CloudParameterUtils {
 
     public static final String DEFAULT_SCHEME = "https";
 
+    // Checks made from the configuration pages must not hang.
+    public static final long VALIDATION_TIMEOUT_MILLIS = 30L * 1000L;
+
     private CloudParameterUtils() {
 
     }
@@ -123,6 +127,33 @@ public final class CloudParameterUtils {
         return (i > 0);
     }
 
+    public static FormValidation validateFailureThreshold(int failureThreshold) {
+        if (!isPositiveInteger(failureThreshold)) {
+            return FormValidation
+                    .error("failure threshold must be a positive integer");
+        } else {
+            return FormValidation.ok();
+        }
+    }
+
+    public static FormValidation validateCoolDownSeconds(int coolDownSeconds) {
+        if (!isPositiveInteger(coolDownSeconds)) {
+            return FormValidation
+                    .error("cool-down period must be a positive integer");
+        } else {
+            return FormValidation.ok();
+        }
+    }
+
+    public static FormValidation validateCallsPerMinute(int callsPerMinute) {
+        if (!isPositiveInteger(callsPerMinute)) {
+            return FormValidation
+                    .error("number of calls per minute must be a positive integer");
+        } else {
+            return FormValidation.ok();
+        }
+    }
+
     public static FormValidation validateKeyFile(String keyFilename,
             String suffix) {
         File keyFile = CloudParameters.getKeyFile(keyFilename, suffix);
@@ -134,10 +165,22 @@ public final class CloudParameterUtils {
         }
     }
 
-    public static FormValidation validateClientLocation(String clientLocation) {
+    public static FormValidation validateClientLocation(
+            final String clientLocation) {
+
+        return ValidationCache.validate("clientLocation#" + clientLocation,
+                new Callable<FormValidation>() {
+                    public FormValidation call() {
+                        return checkClientLocation(clientLocation);
+                    }
+                });
+    }
+
+    public static FormValidation checkClientLocation(String clientLocation) {
 
         try {
-            runCommand(clientLocation, "stratus-describe-instance", "--help");
+            runCommand(clientLocation, VALIDATION_TIMEOUT_MILLIS,
+                    "stratus-describe-instance", "--help");
             return FormValidation.ok();
         } catch (StratusLabException e) {
             return FormValidation.error(e.getMessage());
@@ -0,0 +1,54 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson.utils;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/*
+ * Canonical instances of immutable values, in the manner of String.intern().
+ * Values are only weakly referenced, so an instance is forgotten once it is
+ * no longer used anywhere else.
+ */
+public class Interner<T> {
+
+    private final Map<T, WeakReference<T>> values = new WeakHashMap<T, WeakReference<T>>();
+
+    public synchronized T intern(T value) {
+
+        if (value == null) {
+            return null;
+        }
+
+        WeakReference<T> ref = values.get(value);
+        T canonical = (ref != null) ? ref.get() : null;
+        if (canonical == null) {
+            values.put(value, new WeakReference<T>(value));
+            canonical = value;
+        }
+        return canonical;
+    }
+
+    public synchronized int size() {
+        return values.size();
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.StratusLabCloud;
+
+/*
+ * Executors for the blocking work done while provisioning nodes: starting
+ * instances (which mostly waits for the client commands) and reading the
+ * output of the forked processes. With virtual threads each blocked task
+ * only costs a small heap object; without them the tasks share bounded
+ * pools of platform threads and wait in their queues. Reading the output
+ * has its own executor so that a full launch pool can never starve the
+ * processes that its tasks are waiting for. The commands of each client
+ * location have their own bounded pool of readers. The forwarders of init
+ * script output live as long as the script, and a queued one would stall
+ * the script once the ssh window is full, so they are never queued. Nor are
+ * the launch steps and image bakes: a step holds its thread for the whole
+ * init script and a bake waits for its own steps, so sharing the launch
+ * pool would let them starve instance creation and each other.
+ *
+ * The waits for new instances in StratusLabLauncher are not covered: they
+ * run on the thread that Hudson provides for launching the computer.
+ */
+public final class LaunchExecutors {
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    public enum ExecutionMode {
+        PLATFORM("Platform threads (bounded pool)"), //
+        VIRTUAL("Virtual threads (when supported by the JVM)");
+
+        private final String label;
+
+        private ExecutionMode(String label) {
+            this.label = label;
+        }
+
+        public String label() {
+            return label;
+        }
+    }
+
+    public static final int LAUNCH_POOL_SIZE = 32;
+
+    public static final int IO_POOL_SIZE = 2 * LAUNCH_POOL_SIZE;
+
+    // Each client command needs two readers; commands beyond those that
+    // fit in the pool and queue fail instead of waiting without bound.
+    public static final int IO_QUEUE_CAPACITY = IO_POOL_SIZE;
+
+    private static final ExecutorService PLATFORM_LAUNCH = new ManagedExecutor(
+            "launch", LAUNCH_POOL_SIZE, ManagedExecutor.UNBOUNDED);
+
+    private static final ExecutorService PLATFORM_OUTPUT = new ManagedExecutor(
+            "output", IO_POOL_SIZE, ManagedExecutor.UNBOUNDED);
+
+    private static final ExecutorService PLATFORM_FORWARDERS = ManagedExecutor
+            .createUnbounded("forward");
+
+    private static final ExecutorService PLATFORM_STEPS = ManagedExecutor
+            .createUnbounded("step");
+
+    // Readers for the commands of each client location, so that an
+    // overloaded client doesn't hold up the others.
+    private static final ConcurrentMap<String, ExecutorService> PLATFORM_IO = new ConcurrentHashMap<String, ExecutorService>();
+
+    private static final AtomicInteger ioPools = new AtomicInteger(0);
+
+    // Null if the JVM has no virtual threads.
+    private static final ExecutorService VIRTUAL = createVirtualExecutor();
+
+    private static volatile ExecutionMode mode = ExecutionMode.PLATFORM;
+
+    private LaunchExecutors() {
+
+    }
+
+    public static boolean isVirtualSupported() {
+        return VIRTUAL != null;
+    }
+
+    public static void setMode(ExecutionMode requested) {
+
+        ExecutionMode m = (requested != null) ? requested
+                : ExecutionMode.PLATFORM;
+
+        if (m == ExecutionMode.VIRTUAL && !isVirtualSupported()) {
+            LOGGER.warning("virtual threads are not supported by this JVM; using platform threads");
+            m = ExecutionMode.PLATFORM;
+        }
+
+        if (m != mode) {
+            LOGGER.info("launch execution mode set to " + m);
+            mode = m;
+        }
+    }
+
+    public static ExecutionMode getMode() {
+        return mode;
+    }
+
+    public static ExecutorService launches() {
+        return (mode == ExecutionMode.VIRTUAL) ? VIRTUAL : PLATFORM_LAUNCH;
+    }
+
+    public static ExecutorService io() {
+        return (mode == ExecutionMode.VIRTUAL) ? VIRTUAL : PLATFORM_OUTPUT;
+    }
+
+    public static ExecutorService forwarders() {
+        return (mode == ExecutionMode.VIRTUAL) ? VIRTUAL : PLATFORM_FORWARDERS;
+    }
+
+    public static ExecutorService steps() {
+        return (mode == ExecutionMode.VIRTUAL) ? VIRTUAL : PLATFORM_STEPS;
+    }
+
+    public static ExecutorService io(String clientLocation) {
+
+        if (mode == ExecutionMode.VIRTUAL) {
+            return VIRTUAL;
+        }
+
+        ExecutorService executor = PLATFORM_IO.get(clientLocation);
+        if (executor == null) {
+            synchronized (PLATFORM_IO) {
+                executor = PLATFORM_IO.get(clientLocation);
+                if (executor == null) {
+                    String name = "io-" + ioPools.incrementAndGet();
+                    executor = new ManagedExecutor(name, IO_POOL_SIZE,
+                            IO_QUEUE_CAPACITY);
+                    PLATFORM_IO.put(clientLocation, executor);
+                    String fmt = "executor %s reads the output of %s";
+                    LOGGER.info(String.format(fmt, name, clientLocation));
+                }
+            }
+        }
+        return executor;
+    }
+
+    // Called when the plugin is stopped.
+    public static void shutdown() {
+        if (VIRTUAL != null) {
+            VIRTUAL.shutdownNow();
+        }
+        ManagedExecutor.shutdownAll();
+    }
+
+    // Looked up reflectively so that the plugin still runs on older JVMs.
+    private static ExecutorService createVirtualExecutor() {
+        try {
+            Method factory = Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.StratusLabCloud;
+
+/*
+ * Thread pool with named daemon threads and an optionally bounded queue.
+ * Tasks that don't fit in the queue are rejected (and counted) rather than
+ * piling up. The time that tasks wait in the queue is recorded in the
+ * metrics as "executor.<name>.latency". All of the executors are shut down
+ * together when the plugin is stopped.
+ */
+public class ManagedExecutor extends ThreadPoolExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(StratusLabCloud.class
+            .getName());
+
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private static final long KEEP_ALIVE_SECONDS = 60L;
+
+    private static final long SHUTDOWN_WAIT_SECONDS = 10L;
+
+    private static final List<ManagedExecutor> EXECUTORS = new CopyOnWriteArrayList<ManagedExecutor>();
+
+    private final String name;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public ManagedExecutor(String name, int poolSize, int queueCapacity) {
+        this(name, poolSize, poolSize, createQueue(queueCapacity));
+        allowCoreThreadTimeOut(true);
+    }
+
+    private ManagedExecutor(String name, int corePoolSize, int maxPoolSize,
+            BlockingQueue<Runnable> queue) {
+        super(corePoolSize, maxPoolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                queue, new NamedThreadFactory(name), new CountingAbortPolicy());
+        this.name = name;
+        EXECUTORS.add(this);
+    }
+
+    // Never queues: every task that finds no idle thread gets a new one,
+    // like Hudson's remoting pool. For tasks that must not wait behind
+    // others, such as those that live as long as a launch.
+    public static ManagedExecutor createUnbounded(String name) {
+        return new ManagedExecutor(name, 0, UNBOUNDED,
+                new SynchronousQueue<Runnable>());
+    }
+
+    private static BlockingQueue<Runnable> createQueue(int capacity) {
+        if (capacity == UNBOUNDED) {
+            return new LinkedBlockingQueue<Runnable>();
+        } else {
+            return new ArrayBlockingQueue<Runnable>(capacity);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new QueuedTask(command, System.currentTimeMillis()));
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        if (r instanceof QueuedTask) {
+            long waited = System.currentTimeMillis()
+                    - ((QueuedTask) r).queuedMillis;
+            Metrics.recordTime("executor." + name + ".latency", waited);
+        }
+    }
+
+    public static List<ManagedExecutor> getExecutors() {
+        return new ArrayList<ManagedExecutor>(EXECUTORS);
+    }
+
+    public static void shutdownAll() {
+
+        for (ManagedExecutor executor : EXECUTORS) {
+            executor.shutdownNow();
+        }
+
+        for (ManagedExecutor executor : EXECUTORS) {
+            try {
+                if (!executor.awaitTermination(SHUTDOWN_WAIT_SECONDS,
+                        TimeUnit.SECONDS)) {
+                    LOGGER.warning("executor " + executor.name
+                            + " did not terminate");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        EXECUTORS.clear();
+    }
+
+    @Override
+    public String toString() {
+        String fmt = "%s: active=%d, pool=%d, queued=%d, rejected=%d";
+        return String.format(fmt, name, getActiveCount(), getPoolSize(),
+                getQueueDepth(), getRejectedCount());
+    }
+
+    private static class QueuedTask implements Runnable {
+
+        private final Runnable task;
+
+        public final long queuedMillis;
+
+        public QueuedTask(Runnable task, long queuedMillis) {
+            this.task = task;
+            this.queuedMillis = queuedMillis;
+        }
+
+        public void run() {
+            task.run();
+        }
+    }
+
+    private static class CountingAbortPolicy implements
+            RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            ManagedExecutor managed = (ManagedExecutor) executor;
+            managed.rejected.incrementAndGet();
+            Metrics.increment("executor." + managed.name + ".rejected");
+            throw new RejectedExecutionException("executor " + managed.name
+                    + " is saturated");
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        public NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "stratuslab-" + name + "-"
+                    + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
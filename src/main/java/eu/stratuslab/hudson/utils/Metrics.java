@@ -0,0 +1,146 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Named counters and timers shared by all of the clouds in the JVM.
+ */
+public final class Metrics {
+
+    private static final ConcurrentMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<String, AtomicLong>();
+
+    private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentHashMap<String, Timer>();
+
+    private Metrics() {
+
+    }
+
+    public static long increment(String name) {
+        return add(name, 1L);
+    }
+
+    public static long add(String name, long delta) {
+        return getCounter(name).addAndGet(delta);
+    }
+
+    public static long getCount(String name) {
+        AtomicLong counter = COUNTERS.get(name);
+        return (counter != null) ? counter.get() : 0L;
+    }
+
+    public static Map<String, Long> getCounters() {
+        Map<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet()) {
+            snapshot.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+        return snapshot;
+    }
+
+    public static void recordTime(String name, long millis) {
+        getTimer(name).record(millis);
+    }
+
+    public static Map<String, Timer> getTimers() {
+        Map<String, Timer> snapshot = new TreeMap<String, Timer>();
+        for (Map.Entry<String, Timer> entry : TIMERS.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().copy());
+        }
+        return snapshot;
+    }
+
+    private static Timer getTimer(String name) {
+        Timer timer = TIMERS.get(name);
+        if (timer == null) {
+            Timer newTimer = new Timer();
+            timer = TIMERS.putIfAbsent(name, newTimer);
+            if (timer == null) {
+                timer = newTimer;
+            }
+        }
+        return timer;
+    }
+
+    private static AtomicLong getCounter(String name) {
+        AtomicLong counter = COUNTERS.get(name);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = COUNTERS.putIfAbsent(name, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter;
+    }
+
+    public static class Timer {
+
+        private long count;
+
+        private long totalMillis;
+
+        private long minMillis = Long.MAX_VALUE;
+
+        private long maxMillis;
+
+        public synchronized void record(long millis) {
+            count++;
+            totalMillis += millis;
+            minMillis = Math.min(minMillis, millis);
+            maxMillis = Math.max(maxMillis, millis);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getMeanMillis() {
+            return (count > 0) ? totalMillis / count : 0L;
+        }
+
+        public synchronized long getMinMillis() {
+            return (count > 0) ? minMillis : 0L;
+        }
+
+        public synchronized long getMaxMillis() {
+            return maxMillis;
+        }
+
+        public synchronized Timer copy() {
+            Timer timer = new Timer();
+            timer.count = count;
+            timer.totalMillis = totalMillis;
+            timer.minMillis = minMillis;
+            timer.maxMillis = maxMillis;
+            return timer;
+        }
+
+        public synchronized String toString() {
+            return String.format("count=%d, mean=%dms, min=%dms, max=%dms",
+                    count, getMeanMillis(), getMinMillis(), maxMillis);
+        }
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.StratusLabCloud;
+
+/*
+ * Copies the output of a remote command line by line to a log, adding a
+ * timestamp to each line. The stream is always read until the end, even
+ * once the output limit has been reached, so that the remote side never
+ * blocks on a full channel.
+ */
+public class OutputForwarder implements Runnable {
+
+    public static final int MAX_LINE_LENGTH = 4096;
+
+    private static final int BUFFER_SIZE = 2048;
+
+    private final InputStream is;
+
+    private final PrintStream out;
+
+    private final String prefix;
+
+    private final Charset charset;
+
+    private final OutputLimit limit;
+
+    private final SimpleDateFormat timestampFormat = new SimpleDateFormat(
+            "HH:mm:ss");
+
+    public OutputForwarder(InputStream is, PrintStream out, String prefix,
+            Charset charset, OutputLimit limit) {
+        this.is = is;
+        this.out = out;
+        this.prefix = prefix;
+        this.charset = charset;
+        this.limit = limit;
+    }
+
+    public void run() {
+
+        Logger logger = Logger.getLogger(StratusLabCloud.class.getName());
+
+        char[] buffer = new char[BUFFER_SIZE];
+        StringBuilder line = new StringBuilder();
+
+        Reader reader = null;
+        try {
+
+            reader = new InputStreamReader(is, charset);
+
+            int nchars = reader.read(buffer, 0, BUFFER_SIZE);
+            while (nchars != -1) {
+                for (int i = 0; i < nchars; i++) {
+                    char c = buffer[i];
+                    if (c == '\n') {
+                        emit(line);
+                    } else if (c != '\r') {
+                        line.append(c);
+                        if (line.length() >= MAX_LINE_LENGTH) {
+                            emit(line);
+                        }
+                    }
+                }
+                nchars = reader.read(buffer, 0, BUFFER_SIZE);
+            }
+
+            if (line.length() > 0) {
+                emit(line);
+            }
+
+        } catch (IOException consumed) {
+            logger.warning(consumed.getMessage());
+        } finally {
+            ProcessUtils.closeReliably(reader);
+        }
+    }
+
+    private void emit(StringBuilder line) {
+
+        if (limit.consume(line.length() + 1)) {
+            StringBuilder sb = new StringBuilder(line.length() + 16);
+            sb.append('[');
+            sb.append(timestampFormat.format(new Date()));
+            sb.append("] ");
+            sb.append(prefix);
+            sb.append(line);
+            out.println(sb.toString());
+        } else if (limit.markTruncated()) {
+            String fmt = "output limit of %d characters reached; discarding further output";
+            out.println(String.format(fmt, limit.maximum));
+        }
+
+        line.setLength(0);
+    }
+
+    /*
+     * Number of characters that can still be written; shared by all of the
+     * forwarders of one command. A maximum of zero means no limit.
+     */
+    public static class OutputLimit {
+
+        public final long maximum;
+
+        private final AtomicLong remaining;
+
+        private final AtomicLong truncated = new AtomicLong();
+
+        public OutputLimit(long maximum) {
+            this.maximum = maximum;
+            remaining = new AtomicLong(maximum);
+        }
+
+        public boolean consume(long chars) {
+            if (maximum <= 0) {
+                return true;
+            }
+            return remaining.addAndGet(-chars) >= 0;
+        }
+
+        public boolean isTruncated() {
+            return truncated.get() > 0;
+        }
+
+        // Returns true only the first time so the message is printed once.
+        boolean markTruncated() {
+            return truncated.getAndIncrement() == 0;
+        }
+    }
+
+}
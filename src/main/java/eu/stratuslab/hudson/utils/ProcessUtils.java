@@ -30,13 +30,13 @@ import java.nio.charset.Charset;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import eu.stratuslab.hudson.StratusLabCloud;
@@ -50,15 +50,27 @@ public final class ProcessUtils {
 
     private static final int BUFFER_SIZE = 2048;
 
+    // Client commands that take longer than this are assumed to hang.
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10L * 60L * 1000L;
+
+    // Return code of a command that the master had no room to run; unlike
+    // a timeout (-1), it says nothing about the endpoint.
+    public static final int REJECTED_RC = -2;
+
     private ProcessUtils() {
 
     }
 
     public static void runCommand(String clientLocation, String cmd,
             String... options) throws StratusLabException {
+        runCommand(clientLocation, DEFAULT_TIMEOUT_MILLIS, cmd, options);
+    }
+
+    public static void runCommand(String clientLocation, long timeoutMillis,
+            String cmd, String... options) throws StratusLabException {
 
-        ProcessResult results = runCommandWithResults(clientLocation, cmd,
-                options);
+        ProcessResult results = runCommandWithResults(clientLocation,
+                timeoutMillis, cmd, options);
 
         if (results.rc != 0) {
             throw new StratusLabException(
@@ -70,6 +82,13 @@ public final class ProcessUtils {
 
     public static ProcessResult runCommandWithResults(String clientLocation,
             String cmd, String... options) throws StratusLabException {
+        return runCommandWithResults(clientLocation, DEFAULT_TIMEOUT_MILLIS,
+                cmd, options);
+    }
+
+    public static ProcessResult runCommandWithResults(String clientLocation,
+            long timeoutMillis, String cmd, String... options)
+            throws StratusLabException {
 
         Logger logger = Logger.getLogger(StratusLabCloud.class.getName());
 
@@ -110,7 +129,8 @@ public final class ProcessUtils {
 
         Process process = null;
         try {
-            return new ProcessResult(fullCmd.toString(), pb.start());
+            return new ProcessResult(fullCmd.toString(), pb.start(),
+                    timeoutMillis, LaunchExecutors.io(clientLocation));
         } catch (IOException e) {
             logger.severe(e.getMessage());
             throw new StratusLabException(e.getMessage());
@@ -252,14 +272,6 @@ public final class ProcessUtils {
 
     public static class ProcessResult {
 
-        private static final int POOL_SIZE = 8;
-        private static final int POOL_MAX_SIZE = POOL_SIZE * 2;
-        private static final long KEEP_ALIVE_TIME = 1; // 1 minute
-        private static final BlockingQueue<Runnable> QUEUE = new LinkedBlockingQueue<Runnable>();
-        private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
-                POOL_SIZE, POOL_MAX_SIZE, KEEP_ALIVE_TIME, TimeUnit.MINUTES,
-                QUEUE);
-
         public final String cmd;
 
         public final int rc;
@@ -269,51 +281,101 @@ public final class ProcessUtils {
         public final String error;
 
         public ProcessResult(String cmd, Process process) {
+            this(cmd, process, DEFAULT_TIMEOUT_MILLIS);
+        }
+
+        public ProcessResult(String cmd, Process process, long timeoutMillis) {
+            this(cmd, process, timeoutMillis, LaunchExecutors.io());
+        }
+
+        // The process is destroyed if it has not closed its output streams
+        // within the timeout, or if the executor has no room to read them;
+        // the result then has a return code of -1 or REJECTED_RC.
+        public ProcessResult(String cmd, Process process, long timeoutMillis,
+                ExecutorService executor) {
 
             this.cmd = cmd;
 
             Logger logger = Logger.getLogger(StratusLabCloud.class.getName());
 
-            Future<String> futureOutput = asyncSlurp(process.getInputStream());
-            Future<String> futureError = asyncSlurp(process.getErrorStream());
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+
+            Future<String> futureOutput = null;
+            Future<String> futureError = null;
+            try {
+                futureOutput = asyncSlurp(executor, process.getInputStream());
+                futureError = asyncSlurp(executor, process.getErrorStream());
+            } catch (RejectedExecutionException e) {
+                if (futureOutput != null) {
+                    futureOutput.cancel(true);
+                }
+                process.destroy();
+                String fmt = "too many client commands running; %s: %s";
+                error = String.format(fmt, e.getMessage(), cmd);
+                logger.warning(error);
+                output = EMPTY_STRING;
+                rc = REJECTED_RC;
+                return;
+            }
+
+            boolean timedOut = false;
 
             String o = EMPTY_STRING;
             try {
                 logger.fine("waiting for stdout: " + cmd);
-                o = futureOutput.get();
+                o = futureOutput.get(remaining(deadline), TimeUnit.MILLISECONDS);
             } catch (InterruptedException consumed) {
                 logger.severe(consumed.getMessage());
             } catch (ExecutionException consumed) {
                 logger.severe(consumed.getMessage());
+            } catch (TimeoutException consumed) {
+                timedOut = true;
             }
             output = o;
 
             String e = EMPTY_STRING;
             try {
                 logger.fine("waiting for stderr: " + cmd);
-                e = futureError.get();
+                e = futureError.get(remaining(deadline), TimeUnit.MILLISECONDS);
             } catch (InterruptedException consumed) {
                 logger.severe(consumed.getMessage());
             } catch (ExecutionException consumed) {
                 logger.severe(consumed.getMessage());
+            } catch (TimeoutException consumed) {
+                timedOut = true;
             }
-            error = e;
-
-            logger.fine("waiting for process: " + cmd);
 
             int r = -1;
-            try {
-                r = process.waitFor();
-            } catch (InterruptedException consumed) {
-                logger.severe(consumed.getMessage());
+            if (timedOut) {
+                process.destroy();
+                String fmt = "command timed out after %d s: %s";
+                e = String.format(fmt, timeoutMillis / 1000L, cmd);
+                logger.warning(e);
+            } else {
+                logger.fine("waiting for process: " + cmd);
+                try {
+                    r = process.waitFor();
+                } catch (InterruptedException consumed) {
+                    logger.severe(consumed.getMessage());
+                }
             }
+            error = e;
             rc = r;
 
             logger.fine("finished process: " + cmd + " " + rc);
         }
 
+        private static long remaining(long deadline) {
+            return Math.max(0L, deadline - System.currentTimeMillis());
+        }
+
         public static Future<String> asyncSlurp(InputStream is) {
-            return EXECUTOR.submit(new SlurpCallable(is));
+            return asyncSlurp(LaunchExecutors.io(), is);
+        }
+
+        public static Future<String> asyncSlurp(ExecutorService executor,
+                InputStream is) {
+            return executor.submit(new SlurpCallable(is));
         }
 
         public static class SlurpCallable implements Callable<String> {
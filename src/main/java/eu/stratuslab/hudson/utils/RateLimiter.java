@@ -0,0 +1,147 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Token bucket limiting the rate of calls made to a cloud endpoint. The
+ * bucket holds up to ten seconds worth of calls so that short bursts are
+ * not delayed.
+ *
+ * When the bucket is empty, each caller reserves the next token and then
+ * waits for it outside of the lock. The lock is fair, so callers are served
+ * in the order in which they arrived and none of them can be starved.
+ */
+public class RateLimiter {
+
+    private static final long BURST_MILLIS = 10L * 1000L;
+
+    private static final ConcurrentMap<String, RateLimiter> LIMITERS = new ConcurrentHashMap<String, RateLimiter>();
+
+    private final String name;
+
+    private final ReentrantLock lock = new ReentrantLock(true);
+
+    private double permitsPerMilli;
+
+    private double capacity;
+
+    // Negative when callers are waiting for tokens.
+    private double tokens;
+
+    private long lastRefill;
+
+    public RateLimiter(String name, int permitsPerMinute, long now) {
+        this.name = name;
+        this.lastRefill = now;
+        setRate(permitsPerMinute);
+        this.tokens = capacity;
+    }
+
+    public static RateLimiter get(String name, int defaultPermitsPerMinute) {
+        RateLimiter limiter = LIMITERS.get(name);
+        if (limiter == null) {
+            RateLimiter newLimiter = new RateLimiter(name,
+                    defaultPermitsPerMinute, System.currentTimeMillis());
+            limiter = LIMITERS.putIfAbsent(name, newLimiter);
+            if (limiter == null) {
+                limiter = newLimiter;
+            }
+        }
+        return limiter;
+    }
+
+    public void configure(int permitsPerMinute) {
+        lock.lock();
+        try {
+            refill(System.currentTimeMillis());
+            setRate(permitsPerMinute);
+            tokens = Math.min(tokens, capacity);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // An interrupted caller gives its token back, so that shutting down
+    // doesn't wait for the callers queued behind a burst.
+    public void acquire() throws InterruptedException {
+
+        long start = System.currentTimeMillis();
+        long waitMillis = reserve(start);
+
+        if (waitMillis > 0) {
+            Metrics.increment("rateLimit." + name + ".throttled");
+
+            long deadline = start + waitMillis;
+            try {
+                for (long now = start; now < deadline; now = System
+                        .currentTimeMillis()) {
+                    Thread.sleep(deadline - now);
+                }
+            } catch (InterruptedException e) {
+                giveBack();
+                throw e;
+            }
+        }
+
+        Metrics.recordTime("rateLimit." + name + ".wait",
+                System.currentTimeMillis() - start);
+    }
+
+    // Takes a token and returns the time to wait before it can be used.
+    public long reserve(long now) {
+        lock.lock();
+        try {
+            refill(now);
+            tokens -= 1.0;
+            return (tokens >= 0.0) ? 0L : (long) Math.ceil(-tokens
+                    / permitsPerMilli);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns a reserved token that will not be used.
+    public void giveBack() {
+        lock.lock();
+        try {
+            tokens = Math.min(capacity, tokens + 1.0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void refill(long now) {
+        if (now > lastRefill) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill)
+                    * permitsPerMilli);
+            lastRefill = now;
+        }
+    }
+
+    private void setRate(int permitsPerMinute) {
+        permitsPerMilli = Math.max(1, permitsPerMinute) / 60000.0;
+        capacity = Math.max(1.0, Math.floor(permitsPerMilli * BURST_MILLIS));
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.logging.Logger;
+
+import eu.stratuslab.hudson.StratusLabCloud;
+
+/*
+ * Contents of slave.jar, read once and shared by all of the launches. The
+ * array is handed to the SCP client as is, so concurrent launches don't
+ * each hold a copy of the jar; it must never be modified. The jar is read
+ * again only if its URL or modification time changes.
+ */
+public final class SlaveJarCache {
+
+    public static final String LOADS_COUNTER = "slaveJar.loads";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static String cachedUrl;
+
+    private static long cachedLastModified;
+
+    private static byte[] cachedContents;
+
+    private SlaveJarCache() {
+
+    }
+
+    public static synchronized byte[] getContents(URL url) throws IOException {
+
+        URLConnection connection = url.openConnection();
+        connection.setUseCaches(false);
+        long lastModified = connection.getLastModified();
+
+        String key = url.toExternalForm();
+        if (cachedContents == null || !key.equals(cachedUrl)
+                || lastModified != cachedLastModified) {
+
+            cachedContents = read(connection);
+            cachedUrl = key;
+            cachedLastModified = lastModified;
+
+            Metrics.increment(LOADS_COUNTER);
+            Logger logger = Logger.getLogger(StratusLabCloud.class.getName());
+            String fmt = "loaded %s (%d bytes)";
+            logger.info(String.format(fmt, key, cachedContents.length));
+
+        } else {
+            ProcessUtils.closeReliably(connection.getInputStream());
+        }
+
+        return cachedContents;
+    }
+
+    private static byte[] read(URLConnection connection) throws IOException {
+
+        InputStream is = connection.getInputStream();
+        try {
+            int length = connection.getContentLength();
+            ByteArrayOutputStream os = new ByteArrayOutputStream(
+                    (length > 0) ? length : BUFFER_SIZE);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                os.write(buffer, 0, n);
+            }
+            return os.toByteArray();
+        } finally {
+            ProcessUtils.closeReliably(is);
+        }
+    }
+
+}
@@ -24,6 +24,7 @@ import static eu.stratuslab.hudson.utils.CloudParameterUtils.isPositiveInteger;
 import static eu.stratuslab.hudson.utils.CloudParameterUtils.isValidPort;
 import hudson.util.FormValidation;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -72,6 +73,15 @@ public final class SlaveParameterUtils {
         }
     }
 
+    public static FormValidation validateParkMinutes(int parkMinutes) {
+        if (parkMinutes >= 0) {
+            return FormValidation.ok();
+        } else {
+            return FormValidation
+                    .error("park minutes must be zero or a positive integer");
+        }
+    }
+
     public static FormValidation validateLabelString(String labelString) {
         List<String> labels = createLabelList(labelString);
         if (labels.size() > 0) {
@@ -111,6 +121,37 @@ public final class SlaveParameterUtils {
         }
     }
 
+    public static FormValidation validateInitScriptTimeout(int timeout) {
+        if (timeout >= 0) {
+            return FormValidation.ok();
+        } else {
+            return FormValidation
+                    .error("init script timeout must be zero or a positive integer");
+        }
+    }
+
+    public static FormValidation validateInitScriptOutputLimit(int limit) {
+        if (limit >= 0) {
+            return FormValidation.ok();
+        } else {
+            return FormValidation
+                    .error("init script output limit must be zero or a positive integer");
+        }
+    }
+
+    public static FormValidation validateStagedFiles(String stagedFiles) {
+        if (stagedFiles != null) {
+            for (String line : stagedFiles.split("[\\r\\n]+")) {
+                String path = line.trim();
+                if (!isEmptyStringOrNull(path) && !new File(path).exists()) {
+                    return FormValidation.warning(path
+                            + " doesn't exist on the master");
+                }
+            }
+        }
+        return FormValidation.ok();
+    }
+
     public static FormValidation validateRemoteFS(String remoteFS) {
         if (!isEmptyStringOrNull(remoteFS)) {
             String value = remoteFS.trim();
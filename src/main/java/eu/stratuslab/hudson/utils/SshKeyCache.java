@@ -0,0 +1,208 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import com.trilead.ssh2.crypto.Base64;
+import com.trilead.ssh2.crypto.PEMDecoder;
+import com.trilead.ssh2.signature.DSAPrivateKey;
+import com.trilead.ssh2.signature.RSAPrivateKey;
+
+import eu.stratuslab.hudson.CloudParameters;
+import eu.stratuslab.hudson.StratusLabCloud;
+
+/*
+ * Private keys used to authenticate to the instances, loaded once and
+ * reloaded only when the key file changes.
+ *
+ * Trilead only accepts keys in PEM format and decrypts them on every
+ * authentication. Encrypted keys are therefore decrypted once here and kept
+ * as unencrypted PEM data, which is much cheaper to parse.
+ */
+public final class SshKeyCache {
+
+    public static final String LOADS_COUNTER = "sshKey.loads";
+
+    private static final int PEM_LINE_LENGTH = 64;
+
+    private static final ConcurrentMap<String, SshKey> KEYS = new ConcurrentHashMap<String, SshKey>();
+
+    private SshKeyCache() {
+
+    }
+
+    public static SshKey getKey(File keyFile, String password) {
+
+        String path = keyFile.getAbsolutePath();
+        long lastModified = keyFile.lastModified();
+        long length = keyFile.length();
+
+        SshKey key = KEYS.get(path);
+        if (key == null || key.lastModified != lastModified
+                || key.length != length || !key.isLoadedWith(password)) {
+
+            key = loadKey(keyFile, password, lastModified, length);
+            KEYS.put(path, key);
+        }
+
+        return key;
+    }
+
+    private static SshKey loadKey(File keyFile, String password,
+            long lastModified, long length) {
+
+        Logger logger = Logger.getLogger(StratusLabCloud.class.getName());
+
+        Metrics.increment(LOADS_COUNTER);
+        logger.info("loading ssh private key " + keyFile.getAbsolutePath());
+
+        char[] pem = CloudParameters.fileToCharArray(keyFile);
+
+        if (!isEncrypted(pem)) {
+            return new SshKey(pem, null, password, lastModified, length);
+        }
+
+        try {
+
+            Object decoded = PEMDecoder.decode(pem, password);
+            char[] plain = encode(decoded);
+            if (plain != null) {
+                return new SshKey(plain, null, password, lastModified, length);
+            }
+
+        } catch (IOException e) {
+            logger.warning("cannot decrypt ssh private key "
+                    + keyFile.getAbsolutePath() + ": " + e.getMessage());
+        }
+
+        // Let Trilead deal with the key as before.
+        return new SshKey(pem, password, password, lastModified, length);
+    }
+
+    private static boolean isEncrypted(char[] pem) {
+        return new String(pem).contains("ENCRYPTED");
+    }
+
+    // Trilead reads only (version, n, e, d) for RSA keys and (version, p, q,
+    // g, y, x) for DSA keys, so those are the only fields written.
+    private static char[] encode(Object key) {
+
+        if (key instanceof RSAPrivateKey) {
+            RSAPrivateKey rsa = (RSAPrivateKey) key;
+            byte[] der = derSequence(BigInteger.ZERO, rsa.getN(), rsa.getE(),
+                    rsa.getD());
+            return pem("RSA PRIVATE KEY", der);
+        } else if (key instanceof DSAPrivateKey) {
+            DSAPrivateKey dsa = (DSAPrivateKey) key;
+            byte[] der = derSequence(BigInteger.ZERO, dsa.getP(), dsa.getQ(),
+                    dsa.getG(), dsa.getY(), dsa.getX());
+            return pem("DSA PRIVATE KEY", der);
+        } else {
+            return null;
+        }
+    }
+
+    private static char[] pem(String type, byte[] der) {
+
+        char[] base64 = Base64.encode(der);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("-----BEGIN ").append(type).append("-----\n");
+        for (int i = 0; i < base64.length; i += PEM_LINE_LENGTH) {
+            int n = Math.min(PEM_LINE_LENGTH, base64.length - i);
+            sb.append(base64, i, n).append('\n');
+        }
+        sb.append("-----END ").append(type).append("-----\n");
+
+        char[] data = new char[sb.length()];
+        sb.getChars(0, sb.length(), data, 0);
+        return data;
+    }
+
+    private static byte[] derSequence(BigInteger... values) {
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        for (BigInteger value : values) {
+            writeDer(content, 0x02, value.toByteArray());
+        }
+
+        ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+        writeDer(sequence, 0x30, content.toByteArray());
+        return sequence.toByteArray();
+    }
+
+    private static void writeDer(ByteArrayOutputStream out, int tag,
+            byte[] value) {
+
+        out.write(tag);
+
+        int length = value.length;
+        if (length < 0x80) {
+            out.write(length);
+        } else {
+            int nbytes = 0;
+            for (int i = length; i > 0; i >>= 8) {
+                nbytes++;
+            }
+            out.write(0x80 | nbytes);
+            for (int i = nbytes - 1; i >= 0; i--) {
+                out.write((length >> (8 * i)) & 0xff);
+            }
+        }
+
+        out.write(value, 0, value.length);
+    }
+
+    public static class SshKey {
+
+        // PEM data and password to pass to Trilead.
+        public final char[] pem;
+
+        public final String password;
+
+        private final String loadedWith;
+
+        private final long lastModified;
+
+        private final long length;
+
+        private SshKey(char[] pem, String password, String loadedWith,
+                long lastModified, long length) {
+            this.pem = pem;
+            this.password = password;
+            this.loadedWith = loadedWith;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        private boolean isLoadedWith(String password) {
+            return (loadedWith == null) ? password == null : loadedWith
+                    .equals(password);
+        }
+    }
+
+}
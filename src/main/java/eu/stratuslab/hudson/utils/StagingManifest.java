@@ -0,0 +1,267 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Sizes and block checksums of a set of staged files, keyed by their path
+ * relative to the staging directory. A copy of the manifest is left on the
+ * instance next to the files; comparing it with the manifest of the local
+ * files gives the blocks that have to be sent again.
+ */
+public final class StagingManifest {
+
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final String SEPARATOR = "\t";
+
+    private static final int MAX_CACHED = 10000;
+
+    // Block checksums of local files by absolute path, reused while the
+    // size and modification time of a file are unchanged.
+    @SuppressWarnings("serial")
+    private static final Map<String, Checksums> CACHE = new LinkedHashMap<String, Checksums>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Checksums> eldest) {
+            return size() > MAX_CACHED;
+        }
+    };
+
+    private final Map<String, FileEntry> entries = new LinkedHashMap<String, FileEntry>();
+
+    public static StagingManifest build(List<File> roots) throws IOException {
+        StagingManifest manifest = new StagingManifest();
+        for (File root : roots) {
+            manifest.add(root, root.getName());
+        }
+        return manifest;
+    }
+
+    private void add(File file, String path) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children != null) {
+                Arrays.sort(children);
+                for (File child : children) {
+                    add(child, path + "/" + child.getName());
+                }
+            }
+        } else if (file.isFile() && isValidPath(path)) {
+            entries.put(path, FileEntry.create(file, path));
+        }
+    }
+
+    // Paths are written on single, tab-separated lines.
+    private static boolean isValidPath(String path) {
+        return path.indexOf('\t') < 0 && path.indexOf('\n') < 0
+                && path.indexOf('\r') < 0;
+    }
+
+    public static StagingManifest parse(String text) {
+        StagingManifest manifest = new StagingManifest();
+        if (text != null) {
+            for (String line : text.split("\n")) {
+                FileEntry entry = FileEntry.parse(line);
+                if (entry != null) {
+                    manifest.entries.put(entry.path, entry);
+                }
+            }
+        }
+        return manifest;
+    }
+
+    public List<FileEntry> getEntries() {
+        return new ArrayList<FileEntry>(entries.values());
+    }
+
+    public FileEntry getEntry(String path) {
+        return entries.get(path);
+    }
+
+    // Indices of the blocks of the local entry that differ from those of
+    // the same file in this (remote) manifest.
+    public List<Integer> getChangedBlocks(FileEntry local) {
+
+        FileEntry remote = entries.get(local.path);
+
+        List<Integer> changed = new ArrayList<Integer>();
+        for (int i = 0; i < local.blocks.size(); i++) {
+            if (remote == null || i >= remote.blocks.size()
+                    || !remote.blocks.get(i).equals(local.blocks.get(i))) {
+                changed.add(Integer.valueOf(i));
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (FileEntry entry : entries.values()) {
+            sb.append(entry.toLine()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static final class Checksums {
+
+        final long size;
+
+        final long modified;
+
+        final List<String> blocks;
+
+        Checksums(long size, long modified, List<String> blocks) {
+            this.size = size;
+            this.modified = modified;
+            this.blocks = blocks;
+        }
+    }
+
+    public static class FileEntry {
+
+        public final String path;
+
+        public final long size;
+
+        // Hex-encoded MD5 digests of each block.
+        public final List<String> blocks;
+
+        // Only set for local files.
+        public final File file;
+
+        private FileEntry(String path, long size, List<String> blocks,
+                File file) {
+            this.path = path;
+            this.size = size;
+            this.blocks = Collections.unmodifiableList(blocks);
+            this.file = file;
+        }
+
+        private static FileEntry create(File file, String path)
+                throws IOException {
+
+            String key = file.getAbsolutePath();
+            long length = file.length();
+            long modified = file.lastModified();
+
+            Checksums cached;
+            synchronized (CACHE) {
+                cached = CACHE.get(key);
+            }
+            if (cached != null && cached.size == length
+                    && cached.modified == modified) {
+                return new FileEntry(path, cached.size, cached.blocks, file);
+            }
+
+            MessageDigest md = getDigest();
+            List<String> blocks = new ArrayList<String>();
+            byte[] buffer = new byte[BLOCK_SIZE];
+            long size = 0L;
+
+            InputStream is = new FileInputStream(file);
+            try {
+                int n;
+                while ((n = readBlock(is, buffer)) > 0) {
+                    md.update(buffer, 0, n);
+                    blocks.add(new BigInteger(1, md.digest()).toString(16));
+                    size += n;
+                }
+            } finally {
+                ProcessUtils.closeReliably(is);
+            }
+
+            // A file that changed while it was read is hashed again next
+            // time.
+            if (size == length && file.lastModified() == modified) {
+                synchronized (CACHE) {
+                    CACHE.put(key, new Checksums(size, modified, blocks));
+                }
+            }
+
+            return new FileEntry(path, size, blocks, file);
+        }
+
+        private static int readBlock(InputStream is, byte[] buffer)
+                throws IOException {
+            int total = 0;
+            while (total < buffer.length) {
+                int n = is.read(buffer, total, buffer.length - total);
+                if (n < 0) {
+                    break;
+                }
+                total += n;
+            }
+            return total;
+        }
+
+        private static MessageDigest getDigest() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static FileEntry parse(String line) {
+            String[] fields = line.split(SEPARATOR, -1);
+            if (fields.length != 3) {
+                return null;
+            }
+            try {
+                long size = Long.parseLong(fields[1]);
+                List<String> blocks = new ArrayList<String>();
+                if (fields[2].length() > 0) {
+                    blocks.addAll(Arrays.asList(fields[2].split(",")));
+                }
+                return new FileEntry(fields[0], size, blocks, null);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        private String toLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(path).append(SEPARATOR).append(size).append(SEPARATOR);
+            for (int i = 0; i < blocks.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(blocks.get(i));
+            }
+            return sb.toString();
+        }
+    }
+
+}
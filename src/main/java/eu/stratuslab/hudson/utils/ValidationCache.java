@@ -0,0 +1,175 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson.utils;
+
+import hudson.model.Computer;
+import hudson.util.FormValidation;
+
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * Results of form validations that run client commands. The checks run in
+ * the background and the request thread only waits for a short time; if
+ * the check is still running, the form reports so and the result is
+ * returned when the user checks again. Results are reused for a while so
+ * that re-checking the form does not fork the client each time. Expired
+ * results are dropped and only the most recently used ones are kept.
+ * Secrets must not appear in the keys; use digest() for them.
+ */
+public final class ValidationCache {
+
+    public static final long OK_TTL_MILLIS = 5L * 60L * 1000L;
+
+    public static final long ERROR_TTL_MILLIS = 30L * 1000L;
+
+    public static final long WAIT_MILLIS = 5L * 1000L;
+
+    public static final int MAX_RESULTS = 100;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @SuppressWarnings("serial")
+    private static final Map<String, Result> RESULTS = new LinkedHashMap<String, Result>(
+            16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+
+    private static final Map<String, Future<FormValidation>> RUNNING = new HashMap<String, Future<FormValidation>>();
+
+    private ValidationCache() {
+
+    }
+
+    public static FormValidation validate(final String key,
+            final Callable<FormValidation> check) {
+
+        Future<FormValidation> future;
+
+        synchronized (ValidationCache.class) {
+            Result result = RESULTS.get(key);
+            if (result != null && result.isFresh(System.currentTimeMillis())) {
+                return result.validation;
+            }
+
+            future = RUNNING.get(key);
+            if (future == null) {
+                future = Computer.threadPoolForRemoting
+                        .submit(new Callable<FormValidation>() {
+                            public FormValidation call() throws Exception {
+                                return runCheck(key, check);
+                            }
+                        });
+                RUNNING.put(key, future);
+            }
+        }
+
+        try {
+            return future.get(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return FormValidation
+                    .warning("check still running; check again for the result");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return FormValidation.warning("check interrupted");
+        } catch (ExecutionException e) {
+            return FormValidation.error(e.getCause().getMessage());
+        }
+    }
+
+    private static FormValidation runCheck(String key,
+            Callable<FormValidation> check) throws Exception {
+
+        FormValidation validation;
+        try {
+            validation = check.call();
+        } catch (Exception e) {
+            validation = FormValidation.error(e.getMessage());
+        }
+
+        // Under one lock, so that no caller finds neither the result nor
+        // the running check and starts another one.
+        synchronized (ValidationCache.class) {
+            RUNNING.remove(key);
+            store(key, validation, System.currentTimeMillis());
+        }
+
+        return validation;
+    }
+
+    public static synchronized void store(String key, FormValidation validation,
+            long now) {
+        Iterator<Result> it = RESULTS.values().iterator();
+        while (it.hasNext()) {
+            if (!it.next().isFresh(now)) {
+                it.remove();
+            }
+        }
+        RESULTS.put(key, new Result(validation, now));
+    }
+
+    public static synchronized int size() {
+        return RESULTS.size();
+    }
+
+    // Hex SHA-256 of a value, to be used in keys instead of the value.
+    public static String digest(String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = md.digest(String.valueOf(value).getBytes(UTF8));
+            return new BigInteger(1, bytes).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Result {
+
+        public final FormValidation validation;
+
+        public final long timestamp;
+
+        public Result(FormValidation validation, long timestamp) {
+            this.validation = validation;
+            this.timestamp = timestamp;
+        }
+
+        public boolean isFresh(long now) {
+            long ttl = (validation.kind == FormValidation.Kind.OK) ? OK_TTL_MILLIS
+                    : ERROR_TTL_MILLIS;
+            return now - timestamp < ttl;
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BootCallbacksTest {
+
+    @Test
+    public void checkCallbackEndsWait() throws InterruptedException {
+
+        final String token = BootCallbacks.register();
+        BootCallbacks.bind(token, "account#1");
+
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                BootCallbacks.notifyReady(token);
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        caller.start();
+        assertTrue(BootCallbacks.await("account#1", 10000L));
+        assertTrue(System.currentTimeMillis() - start < 5000L);
+        caller.join();
+
+        // The notification is used up by the wait.
+        assertFalse(BootCallbacks.await("account#1", 10L));
+
+        BootCallbacks.release("account#1");
+    }
+
+    @Test
+    public void checkTokensWorkOnce() {
+        String token = BootCallbacks.register();
+        assertTrue(BootCallbacks.notifyReady(token));
+        assertFalse(BootCallbacks.notifyReady(token));
+        assertFalse(BootCallbacks.notifyReady("unknown"));
+        BootCallbacks.cancel(token);
+    }
+
+    @Test
+    public void checkEarlyCallbackIsKept() throws InterruptedException {
+        String token = BootCallbacks.register();
+        assertTrue(BootCallbacks.notifyReady(token));
+        BootCallbacks.bind(token, "account#2");
+        assertTrue(BootCallbacks.await("account#2", 10L));
+        BootCallbacks.release("account#2");
+        assertFalse(BootCallbacks.notifyReady(token));
+    }
+
+    @Test
+    public void checkWaitWithoutCallbackTimesOut()
+            throws InterruptedException {
+        long start = System.currentTimeMillis();
+        assertFalse(BootCallbacks.await("account#3", 100L));
+        assertTrue(System.currentTimeMillis() - start >= 100L);
+    }
+
+}
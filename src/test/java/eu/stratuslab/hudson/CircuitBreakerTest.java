@@ -0,0 +1,107 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import eu.stratuslab.hudson.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+    private static CircuitBreaker createBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker("test");
+        breaker.configure(3, 10);
+        return breaker;
+    }
+
+    private static void assertRejected(CircuitBreaker breaker, long now) {
+        try {
+            breaker.acquire(now);
+            fail("call should have been rejected");
+        } catch (StratusLabException expected) {
+        }
+    }
+
+    @Test
+    public void checkCircuitOpensAfterThreshold() throws Exception {
+        CircuitBreaker breaker = createBreaker();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(State.CLOSED, breaker.getState());
+            breaker.acquire(0L);
+            breaker.recordFailure(0L);
+        }
+
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.isCallPermitted(9999L));
+        assertRejected(breaker, 9999L);
+    }
+
+    @Test
+    public void checkSuccessResetsFailures() throws Exception {
+        CircuitBreaker breaker = createBreaker();
+
+        breaker.recordFailure(0L);
+        breaker.recordFailure(0L);
+        breaker.recordSuccess();
+        breaker.recordFailure(0L);
+        breaker.recordFailure(0L);
+
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void checkSingleTrialWhenHalfOpen() throws Exception {
+        CircuitBreaker breaker = createBreaker();
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure(0L);
+        }
+
+        assertTrue(breaker.isCallPermitted(10000L));
+        breaker.acquire(10000L);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertRejected(breaker, 10000L);
+
+        breaker.recordSuccess();
+        assertEquals(State.CLOSED, breaker.getState());
+        breaker.acquire(10000L);
+    }
+
+    @Test
+    public void checkFailedTrialReopensCircuit() throws Exception {
+        CircuitBreaker breaker = createBreaker();
+        for (int i = 0; i < 3; i++) {
+            breaker.recordFailure(0L);
+        }
+
+        breaker.acquire(10000L);
+        breaker.recordFailure(10000L);
+
+        assertEquals(State.OPEN, breaker.getState());
+        assertRejected(breaker, 19999L);
+        breaker.acquire(20000L);
+    }
+
+}
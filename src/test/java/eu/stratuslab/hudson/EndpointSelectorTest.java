@@ -0,0 +1,86 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class EndpointSelectorTest {
+
+    private static CloudParameters params(String endpoint) {
+        return new CloudParameters(null, endpoint, "user", null, null, null,
+                null, 10);
+    }
+
+    @Test
+    public void checkEndpointsWithoutCapacityAreSkipped() {
+        CloudParameters full = params("selector-full.example.org");
+        CloudParameters free = params("selector-free.example.org");
+
+        EndpointSelector selector = new EndpointSelector();
+        selector.addEndpoint(full, 0);
+        selector.addEndpoint(free, 1);
+
+        List<CloudParameters> ranked = selector.rank();
+        assertEquals(1, ranked.size());
+        assertEquals(free, ranked.get(0));
+
+        selector.reserve(free);
+        assertTrue(selector.rank().isEmpty());
+    }
+
+    @Test
+    public void checkLoadIsSpread() {
+        CloudParameters a = params("selector-a.example.org");
+        CloudParameters b = params("selector-b.example.org");
+
+        EndpointSelector selector = new EndpointSelector();
+        selector.addEndpoint(a, 2);
+        selector.addEndpoint(b, 3);
+
+        assertEquals(b, selector.rank().get(0));
+        selector.reserve(b);
+        selector.reserve(b);
+        assertEquals(a, selector.rank().get(0));
+        assertEquals(b, selector.rank().get(1));
+    }
+
+    @Test
+    public void checkFailingEndpointIsRankedLast() {
+        CloudParameters good = params("selector-good.example.org");
+        CloudParameters bad = params("selector-bad.example.org");
+
+        EndpointStatistics.get(bad).recordFailure();
+        EndpointStatistics.get(bad).recordFailure();
+
+        EndpointSelector selector = new EndpointSelector();
+        selector.addEndpoint(bad, 5);
+        selector.addEndpoint(good, 4);
+
+        List<CloudParameters> ranked = selector.rank();
+        assertEquals(good, ranked.get(0));
+        assertEquals(bad, ranked.get(1));
+    }
+
+}
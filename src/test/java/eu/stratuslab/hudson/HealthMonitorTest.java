@@ -0,0 +1,52 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+public class HealthMonitorTest {
+
+    @Test
+    public void checkQueuedProbeIsSkipped() throws InterruptedException {
+        HealthMonitor.ProbeTask task = new HealthMonitor.ProbeTask(null);
+        FutureTask<HealthSample> future = new FutureTask<HealthSample>(task);
+
+        assertNull(HealthMonitor.getSample(task, future, 50L));
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void checkFailedProbeIsUnhealthy() throws InterruptedException {
+        HealthMonitor.ProbeTask task = new HealthMonitor.ProbeTask(null);
+        FutureTask<HealthSample> future = new FutureTask<HealthSample>(task);
+        future.run();
+
+        HealthSample sample = HealthMonitor.getSample(task, future, 50L);
+        assertFalse(sample.isHealthy());
+    }
+
+}
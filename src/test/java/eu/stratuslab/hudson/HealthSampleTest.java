@@ -0,0 +1,81 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class HealthSampleTest {
+
+    @Test
+    public void checkHealthySample() {
+        assertTrue(new HealthSample(0.5, 1, 10000L, 512L, 0L).isHealthy());
+        assertTrue(new HealthSample(-1.0, 1, -1L, -1L, -1L).isHealthy());
+    }
+
+    @Test
+    public void checkProblems() {
+        assertFalse(new HealthSample(0.5, 1, 100L, 512L, 0L).isHealthy());
+        assertFalse(new HealthSample(0.5, 1, 10000L, 16L, 200L).isHealthy());
+        assertFalse(new HealthSample(9.0, 2, 10000L, 512L, 0L).isHealthy());
+        assertFalse(HealthSample.failed("probe failed").isHealthy());
+    }
+
+    @Test
+    public void checkMemoryInfoIsParsed() throws IOException {
+        File file = File.createTempFile("meminfo", ".txt");
+        try {
+            FileOutputStream os = new FileOutputStream(file);
+            try {
+                os.write(("MemTotal:  524288 kB\nMemFree:  10240 kB\n"
+                        + "MemAvailable:  65536 kB\nSwapTotal:  1048576 kB\n"
+                        + "SwapFree:  786432 kB\n").getBytes("UTF-8"));
+            } finally {
+                os.close();
+            }
+
+            long[] memory = HealthProbe.readMemoryInfo(file);
+            assertEquals(64L, memory[0]);
+            assertEquals(256L, memory[1]);
+            assertEquals(512L, memory[2]);
+
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    @Test
+    public void checkMissingMemoryInfo() {
+        long[] memory = HealthProbe.readMemoryInfo(new File("/nonexistent"));
+        assertEquals(-1L, memory[0]);
+        assertEquals(-1L, memory[1]);
+        assertEquals(-1L, memory[2]);
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import eu.stratuslab.hudson.utils.Interner;
+
+public class InternerTest {
+
+    private static CloudParameters params(String username) {
+        return new CloudParameters("/opt/stratuslab", "cloud.example.org",
+                username, "password", null, null, null, 10);
+    }
+
+    @Test
+    public void checkEqualValuesShareInstance() {
+        CloudParameters first = CloudParameters.intern(params("user"));
+
+        for (int i = 0; i < 1000; i++) {
+            CloudParameters copy = params("user");
+            assertNotSame(first, copy);
+            assertSame(first, CloudParameters.intern(copy));
+        }
+    }
+
+    @Test
+    public void checkDifferentValuesAreKept() {
+        CloudParameters a = CloudParameters.intern(params("user-a"));
+        CloudParameters b = CloudParameters.intern(params("user-b"));
+
+        assertNotSame(a, b);
+        assertSame(a, CloudParameters.intern(params("user-a")));
+        assertSame(b, CloudParameters.intern(params("user-b")));
+    }
+
+    @Test
+    public void checkReadResolveInterns() {
+        CloudParameters first = CloudParameters.intern(params("resolved"));
+        assertSame(first, params("resolved").readResolve());
+    }
+
+    @Test
+    public void checkNull() {
+        Interner<String> interner = new Interner<String>();
+        assertEquals(null, interner.intern(null));
+        assertEquals(0, interner.size());
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import eu.stratuslab.hudson.utils.LaunchExecutors;
+import eu.stratuslab.hudson.utils.LaunchExecutors.ExecutionMode;
+
+public class LaunchExecutorsTest {
+
+    @After
+    public void resetMode() {
+        LaunchExecutors.setMode(ExecutionMode.PLATFORM);
+    }
+
+    @Test
+    public void checkUnsupportedModeFallsBack() {
+        LaunchExecutors.setMode(ExecutionMode.VIRTUAL);
+        ExecutionMode expected = (LaunchExecutors
+                .isVirtualSupported()) ? ExecutionMode.VIRTUAL
+                : ExecutionMode.PLATFORM;
+        assertEquals(expected, LaunchExecutors.getMode());
+
+        LaunchExecutors.setMode(null);
+        assertEquals(ExecutionMode.PLATFORM, LaunchExecutors.getMode());
+    }
+
+    @Test
+    public void checkPlatformPoolIsBounded() throws Exception {
+
+        final Set<String> threads = Collections
+                .synchronizedSet(new HashSet<String>());
+
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < 500; i++) {
+            results.add(LaunchExecutors.launches().submit(
+                    new Callable<Boolean>() {
+                        public Boolean call() throws InterruptedException {
+                            threads.add(Thread.currentThread().getName());
+                            Thread.sleep(1);
+                            return Boolean.TRUE;
+                        }
+                    }));
+        }
+
+        for (Future<Boolean> result : results) {
+            assertTrue(result.get().booleanValue());
+        }
+        assertTrue(threads.size() <= LaunchExecutors.LAUNCH_POOL_SIZE);
+    }
+
+    @Test
+    public void checkStepsAreNeverQueued() throws Exception {
+
+        // More long steps than the launch pool has threads.
+        int count = LaunchExecutors.LAUNCH_POOL_SIZE + 8;
+        final CountDownLatch started = new CountDownLatch(count);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        for (int i = 0; i < count; i++) {
+            LaunchExecutors.steps().submit(new Callable<Boolean>() {
+                public Boolean call() throws InterruptedException {
+                    started.countDown();
+                    release.await();
+                    return Boolean.TRUE;
+                }
+            });
+        }
+
+        try {
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import eu.stratuslab.hudson.utils.ManagedExecutor;
+
+public class ManagedExecutorTest {
+
+    @Test
+    public void checkSaturatedExecutorRejectsTasks() throws Exception {
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        ManagedExecutor executor = new ManagedExecutor("test", 1, 1);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException consumed) {
+                    }
+                }
+            });
+            started.await();
+
+            executor.execute(new Runnable() {
+                public void run() {
+                }
+            });
+            assertEquals(1, executor.getQueueDepth());
+
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                    }
+                });
+                fail("task should have been rejected");
+            } catch (RejectedExecutionException expected) {
+            }
+            assertEquals(1L, executor.getRejectedCount());
+
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    // Long-lived tasks must all run at once, however many there are.
+    @Test
+    public void checkUnboundedExecutorNeverQueues() throws Exception {
+
+        final int tasks = 200;
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(tasks);
+
+        ManagedExecutor executor = ManagedExecutor.createUnbounded("test");
+        try {
+            for (int i = 0; i < tasks; i++) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException consumed) {
+                        }
+                    }
+                });
+            }
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertEquals(0, executor.getQueueDepth());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+}
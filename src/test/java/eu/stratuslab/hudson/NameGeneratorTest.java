@@ -0,0 +1,133 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.stratuslab.hudson.ProvisioningJournal.Entry;
+import eu.stratuslab.hudson.ProvisioningJournal.State;
+
+public class NameGeneratorTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("journal", ".log");
+    }
+
+    @After
+    public void deleteFile() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Test
+    public void checkNamesAreSequential() {
+        NameGenerator generator = new NameGenerator(new ProvisioningJournal(
+                file), "label");
+        assertEquals("label-1", generator.next());
+        assertEquals("label-2", generator.next());
+    }
+
+    @Test
+    public void checkNamesAreUniqueAcrossThreads() throws InterruptedException {
+
+        final NameGenerator generator = new NameGenerator(
+                new ProvisioningJournal(file), "label");
+        final Set<String> names = Collections
+                .synchronizedSet(new HashSet<String>());
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 250; j++) {
+                        names.add(generator.next());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1000, names.size());
+    }
+
+    @Test
+    public void checkNamesAreNotReusedAfterRestart() {
+
+        NameGenerator generator = new NameGenerator(new ProvisioningJournal(
+                file), "label");
+        for (int i = 0; i < 150; i++) {
+            generator.next();
+        }
+
+        ProvisioningJournal journal = new ProvisioningJournal(file);
+        assertEquals(2 * NameGenerator.BLOCK_SIZE, journal
+                .getReservedNames("label"));
+
+        String name = new NameGenerator(journal, "label").next();
+        assertEquals("label-200", name);
+
+        journal.compact();
+        assertTrue(new ProvisioningJournal(file).getReservedNames("label") > 200);
+        assertEquals(0L, new ProvisioningJournal(file)
+                .getReservedNames("other"));
+    }
+
+    @Test
+    public void checkExistingNodesAreNotRenamedAfterUpgrade() {
+
+        // Nodes named from the old global serial and a journal without any
+        // reservation.
+        ProvisioningJournal journal = new ProvisioningJournal(file);
+        journal.record(new Entry(State.RUNNING, "label-17", "label-17",
+                "label", "image", "endpoint", "user", 17, "10.0.0.17"));
+
+        NameGenerator generator = new NameGenerator(journal, "label",
+                Arrays.asList("label-3", "label-12", "labelx-40", "label-x",
+                        "other-50"));
+        assertEquals("label-18", generator.next());
+        assertEquals("label-19", generator.next());
+
+        // From then on the reservations are enough.
+        NameGenerator restarted = new NameGenerator(new ProvisioningJournal(
+                file), "label");
+        assertEquals("label-100", restarted.next());
+    }
+
+}
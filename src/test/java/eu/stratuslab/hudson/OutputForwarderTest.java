@@ -0,0 +1,108 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+import eu.stratuslab.hudson.utils.OutputForwarder;
+import eu.stratuslab.hudson.utils.OutputForwarder.OutputLimit;
+
+public class OutputForwarderTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String TIMESTAMP = "\\[\\d\\d:\\d\\d:\\d\\d\\] ";
+
+    private static String[] forward(String input, String prefix,
+            OutputLimit limit) throws UnsupportedEncodingException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes, true, "UTF-8");
+
+        new OutputForwarder(new ByteArrayInputStream(input.getBytes(UTF8)),
+                out, prefix, UTF8, limit).run();
+
+        out.close();
+        String output = new String(bytes.toByteArray(), UTF8);
+        return (output.length() == 0) ? new String[0] : output
+                .split("\\r?\\n");
+    }
+
+    @Test
+    public void checkLinesAreTimestamped() throws Exception {
+        String[] lines = forward("first\r\nsecond\nlast", "stderr: ",
+                new OutputLimit(0));
+
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].matches(TIMESTAMP + "stderr: first"));
+        assertTrue(lines[1].matches(TIMESTAMP + "stderr: second"));
+        assertTrue(lines[2].matches(TIMESTAMP + "stderr: last"));
+    }
+
+    @Test
+    public void checkEmptyInput() throws Exception {
+        assertEquals(0, forward("", "", new OutputLimit(0)).length);
+    }
+
+    @Test
+    public void checkLongLinesAreSplit() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < OutputForwarder.MAX_LINE_LENGTH + 10; i++) {
+            sb.append('x');
+        }
+
+        String[] lines = forward(sb.toString(), "", new OutputLimit(0));
+
+        assertEquals(2, lines.length);
+        assertTrue(lines[1].matches(TIMESTAMP + "x{10}"));
+    }
+
+    @Test
+    public void checkOutputIsTruncated() throws Exception {
+        OutputLimit limit = new OutputLimit(10);
+
+        String[] lines = forward("1234\n5678\nabcd\nefgh\n", "", limit);
+
+        assertEquals(3, lines.length);
+        assertTrue(lines[0].endsWith("1234"));
+        assertTrue(lines[1].endsWith("5678"));
+        assertTrue(lines[2].startsWith("output limit"));
+        assertTrue(limit.isTruncated());
+    }
+
+    @Test
+    public void checkUnlimitedOutput() {
+        OutputLimit limit = new OutputLimit(0);
+        assertTrue(limit.consume(Long.MAX_VALUE / 2));
+        assertTrue(limit.consume(Long.MAX_VALUE / 2));
+        assertFalse(limit.isTruncated());
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.stratuslab.hudson.ProvisioningJournal.Entry;
+import eu.stratuslab.hudson.ProvisioningJournal.State;
+
+public class ProvisioningJournalTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("journal", ".log");
+    }
+
+    @After
+    public void deleteFile() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static Entry entry(State state, String name, int vmid) {
+        return new Entry(state, name, name + " (description)", "label",
+                "marketplaceId", "https://cloud.example.org:2634",
+                "user", vmid, "10.0.0." + vmid);
+    }
+
+    @Test
+    public void checkLiveEntriesAreReplayed() {
+        ProvisioningJournal journal = new ProvisioningJournal(file);
+        journal.record(entry(State.REQUESTED, "label-1", -1));
+        journal.record(entry(State.ALLOCATED, "label-1", 1));
+        journal.record(entry(State.REQUESTED, "label-2", -1));
+        journal.record(entry(State.ALLOCATED, "label-2", 2));
+        long sequence = journal.record(entry(State.TERMINATED, "label-2", 2));
+        assertTrue(journal.awaitSync(sequence));
+
+        List<Entry> entries = new ProvisioningJournal(file).getLiveEntries();
+
+        assertEquals(1, entries.size());
+        Entry entry = entries.get(0);
+        assertEquals(State.ALLOCATED, entry.state);
+        assertEquals("label-1", entry.name);
+        assertEquals("label-1 (description)", entry.description);
+        assertEquals(1, entry.vmid);
+        assertEquals("10.0.0.1", entry.ip);
+    }
+
+    @Test
+    public void checkTornLineIsIgnored() throws IOException {
+        ProvisioningJournal journal = new ProvisioningJournal(file);
+        assertTrue(journal.awaitSync(journal.record(entry(State.ONLINE,
+                "label-3", 3))));
+
+        FileOutputStream os = new FileOutputStream(file, true);
+        try {
+            os.write("ALLOCATED\tlabel-4\tdesc".getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+
+        List<Entry> entries = new ProvisioningJournal(file).getLiveEntries();
+        assertEquals(1, entries.size());
+        assertEquals(State.ONLINE, entries.get(0).state);
+    }
+
+    @Test
+    public void checkCompactionKeepsLiveEntries() throws Exception {
+        ProvisioningJournal journal = new ProvisioningJournal(file);
+        for (int i = 0; i < 20; i++) {
+            journal.record(entry(State.ALLOCATED, "label-" + i, i));
+            journal.record(entry(State.TERMINATED, "label-" + i, i));
+        }
+        journal.record(entry(State.RUNNING, "label-20", 20));
+
+        journal.compact();
+        assertTrue(journal.awaitSync(journal.record(entry(State.ONLINE,
+                "label-20", 20))));
+
+        List<Entry> entries = new ProvisioningJournal(file).getLiveEntries();
+        assertEquals(1, entries.size());
+        assertEquals(State.ONLINE, entries.get(0).state);
+        assertTrue(file.length() < 200);
+    }
+
+    @Test
+    public void checkMalformedLines() {
+        assertNull(Entry.parse(""));
+        assertNull(Entry.parse("UNKNOWN\ta\tb\tc\td\te\tf\t1\tg"));
+        assertNull(Entry.parse("ONLINE\ta\tb\tc\td\te\tf\tx\tg"));
+    }
+
+}
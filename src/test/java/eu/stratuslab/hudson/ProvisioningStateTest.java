@@ -0,0 +1,51 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ProvisioningStateTest {
+
+    @Test
+    public void checkReservationsPerAccount() {
+        CloudParameters a = new CloudParameters(null, "a.example.org",
+                "user", null, null, null, null, 10);
+        CloudParameters b = new CloudParameters(null, "b.example.org",
+                "user", null, null, null, null, 10);
+
+        ProvisioningState state = new ProvisioningState();
+        state.reserve(a);
+        state.reserve(a);
+        state.reserve(b);
+
+        assertEquals(2, state.getInFlight(a));
+        assertEquals(1, state.getInFlight(b));
+
+        state.release(a);
+        state.release(b);
+        state.release(b);
+
+        assertEquals(1, state.getInFlight(a));
+        assertEquals(0, state.getInFlight(b));
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import eu.stratuslab.hudson.utils.RateLimiter;
+
+public class RateLimiterTest {
+
+    @Test
+    public void checkBurstIsNotDelayed() {
+        // 60 calls per minute allow bursts of 10 calls.
+        RateLimiter limiter = new RateLimiter("test", 60, 0L);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0L, limiter.reserve(0L));
+        }
+        assertEquals(1000L, limiter.reserve(0L));
+    }
+
+    @Test
+    public void checkWaitingCallersAreQueued() {
+        RateLimiter limiter = new RateLimiter("test", 60, 0L);
+        for (int i = 0; i < 10; i++) {
+            limiter.reserve(0L);
+        }
+
+        assertEquals(1000L, limiter.reserve(0L));
+        assertEquals(2000L, limiter.reserve(0L));
+        assertEquals(2500L, limiter.reserve(500L));
+    }
+
+    @Test
+    public void checkTokensAreRefilled() {
+        RateLimiter limiter = new RateLimiter("test", 60, 0L);
+        for (int i = 0; i < 10; i++) {
+            limiter.reserve(0L);
+        }
+
+        assertEquals(0L, limiter.reserve(1000L));
+        assertEquals(1000L, limiter.reserve(1000L));
+
+        // The bucket never holds more than the burst.
+        for (int i = 0; i < 10; i++) {
+            assertEquals(0L, limiter.reserve(60000L));
+        }
+        assertEquals(1000L, limiter.reserve(60000L));
+    }
+
+    @Test
+    public void checkInterruptedCallerGivesTokenBack()
+            throws InterruptedException {
+        long now = System.currentTimeMillis();
+        RateLimiter limiter = new RateLimiter("test", 60, now);
+        for (int i = 0; i < 10; i++) {
+            limiter.reserve(now);
+        }
+
+        Thread.currentThread().interrupt();
+        try {
+            limiter.acquire();
+            fail("acquire should have been interrupted");
+        } catch (InterruptedException e) {
+            // expected
+        }
+
+        // The next caller waits for the token the interrupted one took.
+        assertEquals(1000L, limiter.reserve(now), 50.0);
+    }
+
+}
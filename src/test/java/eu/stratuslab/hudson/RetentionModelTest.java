@@ -0,0 +1,210 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class RetentionModelTest {
+
+    private static final long MINUTE = 60L * 1000L;
+
+    private long bootMillis;
+
+    // Gaps in milliseconds; the boot time is read from the header.
+    private long[] readTrace(String name) throws IOException {
+
+        InputStream is = getClass().getResourceAsStream(name);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is,
+                "UTF-8"));
+        List<Long> gaps = new ArrayList<Long>();
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("# boot-seconds ")) {
+                    bootMillis = Long.parseLong(line.substring(15)) * 1000L;
+                } else if (!line.startsWith("#") && line.length() > 0) {
+                    gaps.add(Long.valueOf(Long.parseLong(line) * 1000L));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        long[] values = new long[gaps.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = gaps.get(i).longValue();
+        }
+        return values;
+    }
+
+    @Test
+    public void checkDefaultUntilEnoughSamples() {
+        RetentionModel model = new RetentionModel();
+        model.recordBoot(4 * MINUTE);
+        for (int i = 0; i < RetentionModel.MIN_SAMPLES - 1; i++) {
+            model.recordGap(MINUTE);
+        }
+        assertEquals(10 * MINUTE, model.getIdleTimeoutMillis(10 * MINUTE));
+
+        model.recordGap(MINUTE);
+        assertEquals(MINUTE, model.getIdleTimeoutMillis(10 * MINUTE));
+    }
+
+    @Test
+    public void checkLongGapsAreNotWaitedFor() {
+        long[] gaps = new long[20];
+        Arrays.fill(gaps, 3L * 60L * MINUTE);
+        assertEquals(0L, RetentionModel.chooseTimeout(gaps, 4 * MINUTE,
+                RetentionModel.MAX_IDLE_MILLIS));
+    }
+
+    @Test
+    public void checkGapsAreMeasuredBetweenBuilds() {
+        RetentionModel model = new RetentionModel();
+        model.recordStart("a", 1000L);
+        model.recordCompletion("a", 2000L);
+        model.recordStart("a", 5000L);
+        model.recordStart("a", 6000L);
+        model.recordBoot(MINUTE);
+        for (int i = 0; i < RetentionModel.MIN_SAMPLES; i++) {
+            model.recordGap(3000L);
+        }
+        // Only the gap after a completion is counted, so all are 3 s.
+        assertEquals(3000L, model.getIdleTimeoutMillis(MINUTE));
+    }
+
+    // Each node builds every 30 minutes; the builds on b take most of that
+    // time and end just before the next build starts on a, and the other
+    // way round. The gaps of the template as a whole are only 5 seconds,
+    // but a stays idle for 29 minutes and b for 70 seconds.
+    @Test
+    public void checkGapsAreMeasuredPerNode() {
+        RetentionModel model = new RetentionModel();
+        model.recordBoot(60 * MINUTE);
+
+        long second = 1000L;
+        for (int i = 0; i < RetentionModel.MIN_SAMPLES; i++) {
+            long base = i * 30 * MINUTE;
+            model.recordStart("a", base);
+            model.recordCompletion("a", base + MINUTE);
+            model.recordStart("b", base + MINUTE + 5 * second);
+            model.recordCompletion("b", base + 30 * MINUTE - 5 * second);
+        }
+
+        assertEquals(29 * MINUTE, model.getIdleTimeoutMillis(10 * MINUTE));
+    }
+
+    @Test
+    public void checkOverlappingBuildsOnNodeLeaveNoGap() {
+        RetentionModel model = new RetentionModel();
+        model.recordBoot(MINUTE);
+
+        // Two executors: the node is only idle once both builds are done.
+        model.recordStart("a", 0L);
+        model.recordStart("a", 1000L);
+        model.recordCompletion("a", 2000L);
+        model.recordStart("a", 3000L);
+        model.recordCompletion("a", 4000L);
+        model.recordCompletion("a", 5000L);
+
+        for (int i = 0; i < RetentionModel.MIN_SAMPLES - 1; i++) {
+            model.recordGap(7000L);
+        }
+        assertEquals(MINUTE, model.getIdleTimeoutMillis(MINUTE));
+
+        model.recordStart("a", 12000L);
+        assertEquals(7000L, model.getIdleTimeoutMillis(MINUTE));
+    }
+
+    // Nodes stopped after 5 idle minutes say that their gaps were longer;
+    // taking them for 5 minute gaps would favour short timeouts.
+    @Test
+    public void checkIdleEndsAreCensored() {
+        long[] gaps = new long[20];
+        boolean[] censored = new boolean[20];
+        for (int i = 0; i < gaps.length; i++) {
+            censored[i] = (i < 15);
+            gaps[i] = censored[i] ? 5 * MINUTE : 20 * MINUTE;
+        }
+
+        assertEquals(5 * MINUTE, RetentionModel.chooseTimeout(gaps,
+                10 * MINUTE, RetentionModel.MAX_IDLE_MILLIS));
+        assertEquals(0L, RetentionModel.chooseTimeout(gaps, censored,
+                10 * MINUTE, RetentionModel.MAX_IDLE_MILLIS));
+    }
+
+    @Test
+    public void checkIdleEndIsRecorded() {
+        RetentionModel model = new RetentionModel();
+        model.recordBoot(10 * MINUTE);
+        for (int i = 0; i < RetentionModel.MIN_SAMPLES - 1; i++) {
+            model.recordGap(20 * MINUTE);
+        }
+
+        model.recordStart("a", 0L);
+        model.recordCompletion("a", MINUTE);
+        model.recordIdleEnd("a", 6 * MINUTE);
+
+        // Nine gaps of 20 minutes and a node stopped after 5: waiting 20
+        // minutes costs more than booting again.
+        assertEquals(0L, model.getIdleTimeoutMillis(MINUTE));
+    }
+
+    // Learns from the first half of the trace and replays the second half,
+    // comparing the cost with that of fixed idle times.
+    @Test
+    public void checkSimulationOfRecordedTrace() throws IOException {
+
+        long[] trace = readTrace("build-gaps.txt");
+        int half = trace.length / 2;
+
+        RetentionModel model = new RetentionModel();
+        model.recordBoot(bootMillis);
+        for (int i = 0; i < half; i++) {
+            model.recordGap(trace[i]);
+        }
+        long timeout = model.getIdleTimeoutMillis(10 * MINUTE);
+
+        long[] replay = Arrays.copyOfRange(trace, half, trace.length);
+        double adaptive = RetentionModel.expectedCost(replay, timeout,
+                bootMillis);
+
+        for (long fixed : new long[] { 0L, 1 * MINUTE, 10 * MINUTE,
+                60 * MINUTE }) {
+            double cost = RetentionModel.expectedCost(replay, fixed,
+                    bootMillis);
+            assertTrue("timeout " + timeout + " costs " + adaptive
+                    + ", fixed " + fixed + " costs " + cost,
+                    adaptive <= cost * 1.05);
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import hudson.FilePath;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SeedArchivesTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        SeedArchives.takeStale();
+        dir = File.createTempFile("seeds", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static void write(File file, String contents) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(contents.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    private static int readFirstByte(File file) throws IOException {
+        FileInputStream is = new FileInputStream(file);
+        try {
+            return is.read();
+        } finally {
+            is.close();
+        }
+    }
+
+    @Test
+    public void checkLatestNodeIsKept() {
+        SeedArchives.markStale("t1", "node-1");
+        SeedArchives.markStale("t1", "node-2");
+        SeedArchives.markStale("t2", "node-3");
+
+        Map<String, String> stale = SeedArchives.takeStale();
+        assertEquals(2, stale.size());
+        assertEquals("node-2", stale.get("t1"));
+        assertEquals("node-3", stale.get("t2"));
+
+        assertTrue(SeedArchives.takeStale().isEmpty());
+    }
+
+    @Test
+    public void checkRetryDoesNotReplaceNewerNode() {
+        SeedArchives.markStale("t1", "node-2");
+        SeedArchives.retryLater("t1", "node-1");
+        assertEquals("node-2", SeedArchives.takeStale().get("t1"));
+
+        SeedArchives.retryLater("t1", "node-1");
+        assertEquals("node-1", SeedArchives.takeStale().get("t1"));
+    }
+
+    @Test
+    public void checkIncludesArePartOfName() {
+        File a = SeedArchives.getArchive(dir, "t1", "**/.m2/**");
+        File b = SeedArchives.getArchive(dir, "t1", "**/.m2/**,ws/**");
+        assertFalse(a.equals(b));
+        assertEquals(a, SeedArchives.getArchive(dir, "t1", "**/.m2/**"));
+    }
+
+    @Test
+    public void checkArchiveIsReplacedAtomically() throws Exception {
+        File archive = SeedArchives.getArchive(dir, "t1", "**");
+        write(archive, "old");
+
+        // A launch reading the old archive keeps reading it.
+        FileInputStream reader = new FileInputStream(archive);
+        try {
+            SeedArchives.refresh(archive, new FilePath(dir), "**");
+            assertEquals('o', reader.read());
+        } finally {
+            reader.close();
+        }
+
+        assertTrue(archive.isFile());
+        assertFalse(new File(archive.getPath() + ".tmp").exists());
+        assertEquals(0x1f, readFirstByte(archive));
+    }
+
+    @Test
+    public void checkFailedRefreshKeepsOldArchive() throws Exception {
+        File archive = SeedArchives.getArchive(dir, "t1", "**");
+        write(archive, "old");
+
+        // The temporary file cannot be written.
+        File tmp = new File(archive.getPath() + ".tmp");
+        assertTrue(tmp.mkdir());
+
+        try {
+            SeedArchives.refresh(archive, new FilePath(dir), "**");
+            fail("refresh should have failed");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertEquals(3L, archive.length());
+        assertEquals('o', readFirstByte(archive));
+    }
+
+}
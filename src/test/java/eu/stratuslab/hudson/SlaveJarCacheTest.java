@@ -0,0 +1,84 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.stratuslab.hudson.utils.SlaveJarCache;
+
+public class SlaveJarCacheTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("slave", ".jar");
+        write(new byte[] { 1, 2, 3 });
+    }
+
+    @After
+    public void deleteFile() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private void write(byte[] contents) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(contents);
+        } finally {
+            os.close();
+        }
+    }
+
+    @Test
+    public void checkContentsAreShared() throws IOException {
+        URL url = file.toURI().toURL();
+        byte[] first = SlaveJarCache.getContents(url);
+        assertEquals(3, first.length);
+        assertSame(first, SlaveJarCache.getContents(url));
+    }
+
+    @Test
+    public void checkModifiedJarIsReloaded() throws IOException {
+        URL url = file.toURI().toURL();
+        byte[] first = SlaveJarCache.getContents(url);
+
+        write(new byte[] { 1, 2, 3, 4 });
+        assertTrue(file.setLastModified(file.lastModified() + 2000L));
+
+        byte[] second = SlaveJarCache.getContents(url);
+        assertEquals(4, second.length);
+        assertTrue(first != second);
+    }
+
+}
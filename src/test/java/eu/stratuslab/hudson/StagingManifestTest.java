@@ -0,0 +1,122 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.stratuslab.hudson.utils.StagingManifest;
+import eu.stratuslab.hudson.utils.StagingManifest.FileEntry;
+
+public class StagingManifestTest {
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("staged", ".bin");
+    }
+
+    @After
+    public void deleteFile() {
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private void write(byte[] contents) throws IOException {
+        FileOutputStream os = new FileOutputStream(file);
+        try {
+            os.write(contents);
+        } finally {
+            os.close();
+        }
+    }
+
+    private StagingManifest build() throws IOException {
+        return StagingManifest.build(Arrays.asList(file));
+    }
+
+    @Test
+    public void checkManifestRoundTrip() throws IOException {
+        write(new byte[StagingManifest.BLOCK_SIZE + 10]);
+
+        StagingManifest local = build();
+        FileEntry entry = local.getEntries().get(0);
+        assertEquals(2, entry.blocks.size());
+        assertEquals(StagingManifest.BLOCK_SIZE + 10L, entry.size);
+
+        StagingManifest remote = StagingManifest.parse(local.toString());
+        assertEquals(entry.size, remote.getEntry(entry.path).size);
+        assertTrue(remote.getChangedBlocks(entry).isEmpty());
+    }
+
+    @Test
+    public void checkOnlyChangedBlocksAreSent() throws IOException {
+        byte[] data = new byte[3 * StagingManifest.BLOCK_SIZE];
+        write(data);
+        StagingManifest remote = StagingManifest.parse(build().toString());
+
+        data[StagingManifest.BLOCK_SIZE + 1] = 1;
+        write(data);
+        FileEntry entry = build().getEntries().get(0);
+
+        List<Integer> changed = remote.getChangedBlocks(entry);
+        assertEquals(Arrays.asList(Integer.valueOf(1)), changed);
+    }
+
+    @Test
+    public void checkNewFileIsSentCompletely() throws IOException {
+        write(new byte[2 * StagingManifest.BLOCK_SIZE]);
+        FileEntry entry = build().getEntries().get(0);
+
+        StagingManifest remote = StagingManifest.parse("");
+        assertEquals(2, remote.getChangedBlocks(entry).size());
+    }
+
+    @Test
+    public void checkUnchangedFilesAreNotHashedAgain() throws IOException {
+        byte[] data = new byte[StagingManifest.BLOCK_SIZE];
+        write(data);
+        long modified = file.lastModified();
+        List<String> blocks = build().getEntries().get(0).blocks;
+
+        // Same size and modification time: the cached checksums are used.
+        data[0] = 1;
+        write(data);
+        assertTrue(file.setLastModified(modified));
+        assertEquals(blocks, build().getEntries().get(0).blocks);
+
+        assertTrue(file.setLastModified(modified - 10000L));
+        assertFalse(blocks.equals(build().getEntries().get(0).blocks));
+    }
+
+}
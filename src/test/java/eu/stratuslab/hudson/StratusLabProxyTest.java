@@ -0,0 +1,105 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static eu.stratuslab.hudson.StratusLabProxy.getVmName;
+import static eu.stratuslab.hudson.StratusLabProxy.isPluginInstance;
+import static eu.stratuslab.hudson.StratusLabProxy.isTransportFailure;
+import static eu.stratuslab.hudson.StratusLabProxy.parseForInstanceList;
+import static eu.stratuslab.hudson.StratusLabProxy.parseForMarketplaceId;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import eu.stratuslab.hudson.StratusLabProxy.InstanceStatus;
+import eu.stratuslab.hudson.utils.ProcessUtils;
+
+public class StratusLabProxyTest {
+
+    private static final String DESCRIBE_OUTPUT = "" //
+            + "id  state     vcpu memory    cpu% host/ip                  name\n" //
+            + "50  Running   1    0         0    vm-50.example.org        hudson-java-1\n" //
+            + "51  Pending   1    0         0    vm-51.example.org        one-51\n" //
+            + "52  Done      1    0         0    vm-52.example.org        hudson-java-2\n";
+
+    @Test
+    public void checkInstanceListParsing() {
+        List<InstanceStatus> instances = parseForInstanceList(DESCRIBE_OUTPUT);
+
+        assertEquals(3, instances.size());
+
+        InstanceStatus first = instances.get(0);
+        assertEquals(50, first.vmid);
+        assertEquals("Running", first.state);
+        assertEquals("hudson-java-1", first.name);
+    }
+
+    @Test
+    public void checkEmptyInstanceList() {
+        assertEquals(0, parseForInstanceList("").size());
+        assertEquals(0, parseForInstanceList(
+                "id  state     vcpu memory    cpu% host/ip name\n").size());
+    }
+
+    @Test
+    public void checkPluginInstances() {
+        List<InstanceStatus> instances = parseForInstanceList(DESCRIBE_OUTPUT);
+
+        assertTrue(isPluginInstance(instances.get(0)));
+        assertFalse(isPluginInstance(instances.get(1)));
+        assertTrue(instances.get(2).isTerminated());
+    }
+
+    @Test
+    public void checkVmNameIsSanitized() {
+        assertEquals("hudson-java-1", getVmName("java-1"));
+        assertEquals("hudson-big_java-1", getVmName("big java-1"));
+    }
+
+    @Test
+    public void checkNewImageIdentifier() {
+        assertEquals("GJ5vp8gIxhZ1w1MQF19R6TKhNlb",
+                parseForMarketplaceId("Shutting down 42\n"
+                        + "New image: GJ5vp8gIxhZ1w1MQF19R6TKhNlb\n"));
+        assertNull(parseForMarketplaceId("Shutting down 42\n"));
+        assertNull(parseForMarketplaceId("GJ5vp8gIxhZ1w1MQF19R6TKhNlbX"));
+    }
+
+    @Test
+    public void checkOnlyTransportErrorsAreFailures() {
+        assertFalse(isTransportFailure(0, ""));
+        assertTrue(isTransportFailure(-1, ""));
+        assertTrue(isTransportFailure(1,
+                "<urlopen error [Errno 111] Connection refused>"));
+        assertTrue(isTransportFailure(1, "HTTP Error 503: Service Unavailable"));
+        assertTrue(isTransportFailure(1, "502 Bad Gateway"));
+        assertFalse(isTransportFailure(1, "HTTP Error 404: Not Found"));
+        assertFalse(isTransportFailure(1, "Unknown VM id 42"));
+        assertFalse(isTransportFailure(1, null));
+        assertFalse(isTransportFailure(ProcessUtils.REJECTED_RC,
+                "too many client commands running"));
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import eu.stratuslab.hudson.SlaveTemplate.InstanceTypes;
+import eu.stratuslab.hudson.UsageStore.Record;
+
+public class UsageStoreTest {
+
+    @Test
+    public void checkSmallestFittingType() {
+        assertEquals(InstanceTypes.T1_MICRO,
+                InstanceTypes.smallestFitting(0.5, 100L));
+        assertEquals(InstanceTypes.C1_MEDIUM,
+                InstanceTypes.smallestFitting(1.0, 200L));
+        assertEquals(InstanceTypes.M1_LARGE,
+                InstanceTypes.smallestFitting(1.5, 200L));
+        assertEquals(InstanceTypes.C1_XLARGE,
+                InstanceTypes.smallestFitting(3.0, 100L));
+        assertEquals(InstanceTypes.C1_XLARGE,
+                InstanceTypes.smallestFitting(8.0, 8192L));
+    }
+
+    @Test
+    public void checkExecutorsForType() {
+        InstanceTypes type = InstanceTypes.C1_XLARGE;
+        assertEquals(4, type.executorsFor(null));
+        assertEquals(8, type.executorsFor(new UsageSample(0.5, 100L)));
+        assertEquals(4, type.executorsFor(new UsageSample(0.5, 400L)));
+        assertEquals(2, type.executorsFor(new UsageSample(1.5, 100L)));
+        assertEquals(1, InstanceTypes.M1_SMALL.executorsFor(new UsageSample(
+                2.0, 2000L)));
+    }
+
+    @Test
+    public void checkCpuTimesAreParsed() {
+        long[] times = UsageSampler
+                .parseCpuTimes("cpu  100 0 50 800 50 0 0 0 0 0");
+        assertArrayEquals(new long[] { 150L, 1000L }, times);
+        assertNull(UsageSampler.parseCpuTimes("cpu0 1 2 3 4"));
+    }
+
+    @Test
+    public void checkRecommendationIgnoresOutliers() throws IOException {
+        File file = File.createTempFile("usage", ".dat");
+        try {
+            UsageStore store = new UsageStore(file);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < UsageStore.MIN_RECORDS - 1; i++) {
+                store.record(new Record(now, "small", 0.8, 90L));
+            }
+            assertNull(store.recommend(1));
+
+            for (int i = 0; i < 30; i++) {
+                store.record(new Record(now, "small", 0.8, 90L));
+            }
+            store.record(new Record(now, "huge", 4.0, 2000L));
+            assertEquals(InstanceTypes.T1_MICRO, store.recommend(1));
+            assertEquals(InstanceTypes.M1_LARGE, store.recommend(2));
+
+            // Records survive a restart of the master.
+            UsageStore reloaded = new UsageStore(file);
+            assertEquals(store.size(), reloaded.size());
+            assertEquals(2000L, reloaded.getJobPeaks().get("huge").memoryMB);
+            assertEquals(InstanceTypes.T1_MICRO, reloaded.recommend(1));
+
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    @Test
+    public void checkOldRecordsAreDropped() throws IOException {
+        File file = File.createTempFile("usage", ".dat");
+        try {
+            UsageStore store = new UsageStore(file);
+            long now = System.currentTimeMillis();
+            store.record(new Record(now - 2 * UsageStore.MAX_AGE_MILLIS,
+                    "old", 1.0, 100L));
+            store.record(new Record(now, "new", 1.0, 100L));
+            assertEquals(1, store.size());
+            assertEquals(1, new UsageStore(file).size());
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    @Test
+    public void checkTornRecordIsCutOff() throws IOException {
+        File file = File.createTempFile("usage", ".dat");
+        try {
+            long now = System.currentTimeMillis();
+            new UsageStore(file).record(new Record(now, "a", 1.0, 100L));
+            long complete = file.length();
+
+            // A crash in the middle of the next append.
+            FileOutputStream os = new FileOutputStream(file, true);
+            try {
+                os.write(new byte[] { 0, 0, 1 });
+            } finally {
+                os.close();
+            }
+
+            UsageStore store = new UsageStore(file);
+            assertEquals(1, store.size());
+            assertEquals(complete, file.length());
+
+            store.record(new Record(now, "b", 1.0, 100L));
+            assertEquals(2, new UsageStore(file).size());
+        } finally {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ Created as part of the StratusLab project (http://stratuslab.eu),
+ co-funded by the European Commission under the Grant Agreement
+ INSFO-RI-261552.
+
+ Copyright (c) 2011, Centre National de la Recherche Scientifique (CNRS)
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package eu.stratuslab.hudson;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import hudson.util.FormValidation;
+
+import org.junit.Test;
+
+import eu.stratuslab.hudson.utils.ValidationCache;
+
+public class ValidationCacheTest {
+
+    @Test
+    public void checkExpiredResultsAreDropped() {
+        // Later than the expiry of anything stored by the other tests.
+        long now = System.currentTimeMillis() + 2
+                * ValidationCache.OK_TTL_MILLIS;
+        ValidationCache.store("expired", FormValidation.error("bad"), now
+                - 2 * ValidationCache.ERROR_TTL_MILLIS);
+        ValidationCache.store("fresh", FormValidation.ok(), now);
+        assertEquals(1, ValidationCache.size());
+    }
+
+    @Test
+    public void checkResultsAreBounded() {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 2 * ValidationCache.MAX_RESULTS; i++) {
+            ValidationCache.store("key" + i, FormValidation.ok(), now);
+        }
+        assertEquals(ValidationCache.MAX_RESULTS, ValidationCache.size());
+    }
+
+    @Test
+    public void checkDigestHidesValue() {
+        String digest = ValidationCache.digest("secret");
+        assertFalse(digest.contains("secret"));
+        assertEquals(digest, ValidationCache.digest("secret"));
+        assertTrue(!digest.equals(ValidationCache.digest("secret2")));
+    }
+
+}